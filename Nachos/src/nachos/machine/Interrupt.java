@@ -6,7 +6,6 @@ import nachos.security.*;
 
 import java.util.TreeSet;
 import java.util.Iterator;
-import java.util.SortedSet;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +52,14 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+
+	String queueType = Config.getString("Interrupt.pendingQueue", "heap");
+	if (queueType.equals("heap"))
+	    pending = new HeapQueue();
+	else if (queueType.equals("tree"))
+	    pending = new TreeQueue();
+	else
+	    Lib.assertNotReached("unknown Interrupt.pendingQueue: " + queueType);
     }
 
     /**
@@ -120,17 +126,50 @@ public final class Interrupt {
 	return !enabled;
     }
 
+    /**
+     * Wait for the next pending interrupt, the way an idle kernel would by
+     * repeatedly enabling interrupts. Simulated time jumps in one step to the
+     * first kernel tick at which an interrupt is due, and the due interrupts
+     * are then invoked exactly as if each of the skipped ticks had been
+     * taken. Returns immediately if no interrupts are pending.
+     *
+     * <p>
+     * Interrupts must be enabled.
+     */
+    public void idle() {
+	Lib.assertTrue(enabled());
+
+	long next = nextPendingTime();
+	if (next == Long.MAX_VALUE)
+	    return;
+
+	Stats stats = privilege.stats;
+	long gap = next - stats.totalTicks;
+	long numTicks = Math.max(1, (gap + Stats.KernelTick-1) / Stats.KernelTick);
+
+	// keep the per-tick debug output identical to the slow path
+	if (Lib.test(dbgInt)) {
+	    for (long i=0; i<numTicks; i++)
+		tick(true);
+	    return;
+	}
+
+	stats.kernelTicks += (numTicks-1) * Stats.KernelTick;
+	stats.totalTicks += (numTicks-1) * Stats.KernelTick;
+
+	tick(true);
+    }
+
     private void schedule(long when, String type, Runnable handler) {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
-	Lib.debug(dbgInt,
-		  "Scheduling the " + type +
-		  " interrupt handler at time = " + time);
+	if (Lib.test(dbgInt))
+	    System.out.println("Scheduling the " + type +
+			       " interrupt handler at time = " + time);
 
-	pending.add(toOccur);
+	pending.add(time, type, handler);
     }
 
     private void tick(boolean inKernelMode) {
@@ -145,6 +184,12 @@ public final class Interrupt {
 	    stats.totalTicks += Stats.UserTick;
 	}
 
+	// nothing can be due yet, so skip the rest
+	if (stats.totalTicks < pending.firstTime() && !Lib.test(dbgInt)) {
+	    enabled = true;
+	    return;
+	}
+
 	if (Lib.test(dbgInt))
 	    System.out.println("== Tick " + stats.totalTicks + " ==");
 
@@ -153,6 +198,29 @@ public final class Interrupt {
 	enabled = true;
     }
 
+    private long nextPendingTime() {
+	return pending.firstTime();
+    }
+
+    private void advanceUserTicks(int numInstructions) {
+	Stats stats = privilege.stats;
+
+	Lib.assertTrue(numInstructions >= 0);
+
+	// keep the per-tick debug output identical to the slow path
+	if (Lib.test(dbgInt)) {
+	    for (int i=0; i<numInstructions; i++)
+		tick(false);
+	    return;
+	}
+
+	long ticks = (long) numInstructions * Stats.UserTick;
+	Lib.assertTrue(stats.totalTicks + ticks < nextPendingTime());
+
+	stats.userTicks += ticks;
+	stats.totalTicks += ticks;
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
@@ -161,27 +229,23 @@ public final class Interrupt {
 	if (Lib.test(dbgInt))
 	    print();
 
-	if (pending.isEmpty())
-	    return;
-
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (pending.firstTime() > time)
 	    return;
 
 	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
-
-	    Lib.assertTrue(next.time <= time);
+	while (pending.firstTime() <= time) {
+	    String type = pending.firstType();
+	    Runnable handler = pending.firstHandler();
+	    pending.removeFirst();
 
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    if (Lib.test(dbgInt))
+		System.out.println("  " + type);
 			
-	    next.handler.run();
+	    handler.run();
 	}
 
 	Lib.debug(dbgInt, "  (end of list)");
@@ -192,15 +256,214 @@ public final class Interrupt {
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
-	    System.out.println("  " + toOccur.type +
-			       ", scheduled at " + toOccur.time);
-	}
+	pending.print();
 
 	System.out.println("  (end of list)");
     }
 
+    /**
+     * The set of pending interrupts, ordered by the time at which they are
+     * due and then by the order in which they were scheduled.
+     */
+    private interface PendingQueue {
+	/**
+	 * Add an interrupt to this queue.
+	 *
+	 * @param	time	the time at which the interrupt is due.
+	 * @param	type	a name for the type of interrupt.
+	 * @param	handler	the interrupt handler to call.
+	 */
+	void add(long time, String type, Runnable handler);
+
+	/**
+	 * Return the time at which the first interrupt is due. This is called
+	 * on every tick, so it must be cheap.
+	 *
+	 * @return	the time of the first interrupt, or <tt>Long.MAX_VALUE</tt>
+	 *		if this queue is empty.
+	 */
+	long firstTime();
+
+	/** Return the type of the first interrupt. */
+	String firstType();
+
+	/** Return the handler of the first interrupt. */
+	Runnable firstHandler();
+
+	/** Remove the first interrupt. This queue must not be empty. */
+	void removeFirst();
+
+	/** Print every interrupt in this queue, in order. */
+	void print();
+    }
+
+    /**
+     * A binary min-heap of pending interrupts, stored in parallel arrays so
+     * that scheduling and invoking an interrupt allocate nothing once the
+     * arrays have grown large enough.
+     */
+    private static class HeapQueue implements PendingQueue {
+	HeapQueue() {
+	    this(16);
+	}
+
+	HeapQueue(int capacity) {
+	    times = new long[capacity];
+	    ids = new long[capacity];
+	    types = new String[capacity];
+	    handlers = new Runnable[capacity];
+	}
+	
+	public void add(long time, String type, Runnable handler) {
+	    if (size == times.length)
+		grow();
+
+	    int i = size++;
+	    times[i] = time;
+	    ids[i] = numAdded++;
+	    types[i] = type;
+	    handlers[i] = handler;
+
+	    // sift up
+	    while (i > 0) {
+		int parent = (i-1) / 2;
+		if (!before(i, parent))
+		    break;
+		swap(i, parent);
+		i = parent;
+	    }
+	}
+
+	public long firstTime() {
+	    return (size == 0) ? Long.MAX_VALUE : times[0];
+	}
+
+	public String firstType() {
+	    Lib.assertTrue(size > 0);
+	    return types[0];
+	}
+
+	public Runnable firstHandler() {
+	    Lib.assertTrue(size > 0);
+	    return handlers[0];
+	}
+
+	public void removeFirst() {
+	    Lib.assertTrue(size > 0);
+
+	    size--;
+	    swap(0, size);
+	    types[size] = null;
+	    handlers[size] = null;
+
+	    // sift down
+	    int i = 0;
+	    while (true) {
+		int least = i;
+		int left = 2*i + 1, right = left + 1;
+		if (left < size && before(left, least))
+		    least = left;
+		if (right < size && before(right, least))
+		    least = right;
+		if (least == i)
+		    break;
+		swap(i, least);
+		i = least;
+	    }
+	}
+
+	public void print() {
+	    // drain a copy, since the heap itself is only partially ordered
+	    HeapQueue copy = new HeapQueue(Math.max(size, 1));
+	    System.arraycopy(times, 0, copy.times, 0, size);
+	    System.arraycopy(ids, 0, copy.ids, 0, size);
+	    System.arraycopy(types, 0, copy.types, 0, size);
+	    System.arraycopy(handlers, 0, copy.handlers, 0, size);
+	    copy.size = size;
+	    
+	    while (copy.firstTime() != Long.MAX_VALUE) {
+		System.out.println("  " + copy.firstType() +
+				   ", scheduled at " + copy.firstTime());
+		copy.removeFirst();
+	    }
+	}
+
+	private boolean before(int i, int j) {
+	    return (times[i] < times[j] ||
+		    (times[i] == times[j] && ids[i] < ids[j]));
+	}
+
+	private void swap(int i, int j) {
+	    long time = times[i]; times[i] = times[j]; times[j] = time;
+	    long id = ids[i]; ids[i] = ids[j]; ids[j] = id;
+	    String type = types[i]; types[i] = types[j]; types[j] = type;
+	    Runnable handler = handlers[i];
+	    handlers[i] = handlers[j];
+	    handlers[j] = handler;
+	}
+
+	private void grow() {
+	    int capacity = times.length * 2;
+
+	    long[] newTimes = new long[capacity];
+	    long[] newIds = new long[capacity];
+	    String[] newTypes = new String[capacity];
+	    Runnable[] newHandlers = new Runnable[capacity];
+
+	    System.arraycopy(times, 0, newTimes, 0, size);
+	    System.arraycopy(ids, 0, newIds, 0, size);
+	    System.arraycopy(types, 0, newTypes, 0, size);
+	    System.arraycopy(handlers, 0, newHandlers, 0, size);
+
+	    times = newTimes;
+	    ids = newIds;
+	    types = newTypes;
+	    handlers = newHandlers;
+	}
+
+	private long[] times, ids;
+	private String[] types;
+	private Runnable[] handlers;
+	private int size = 0;
+	private long numAdded = 0;
+    }
+
+    /**
+     * The original pending interrupt set, a <tt>TreeSet</tt> holding one
+     * <tt>PendingInterrupt</tt> per scheduled interrupt.
+     */
+    private class TreeQueue implements PendingQueue {
+	public void add(long time, String type, Runnable handler) {
+	    set.add(new PendingInterrupt(time, type, handler));
+	}
+
+	public long firstTime() {
+	    return set.isEmpty() ? Long.MAX_VALUE : set.first().time;
+	}
+
+	public String firstType() {
+	    return set.first().type;
+	}
+
+	public Runnable firstHandler() {
+	    return set.first().handler;
+	}
+
+	public void removeFirst() {
+	    set.remove(set.first());
+	}
+
+	public void print() {
+	    for (Iterator i=set.iterator(); i.hasNext(); ) {
+		PendingInterrupt toOccur = (PendingInterrupt) i.next();
+		System.out.println("  " + toOccur.type +
+				   ", scheduled at " + toOccur.time);
+	    }
+	}
+
+	private TreeSet<PendingInterrupt> set = new TreeSet<PendingInterrupt>();
+    }
+
     private class PendingInterrupt implements Comparable {
 	PendingInterrupt(long time, String type, Runnable handler) {
 	    this.time = time;
@@ -237,7 +500,7 @@ public final class Interrupt {
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+    private PendingQueue pending;
 
     private static final char dbgInt = 'i';
 
@@ -249,5 +512,13 @@ public final class Interrupt {
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public long nextPendingTime() {
+	    return Interrupt.this.nextPendingTime();
+	}
+
+	public void advanceUserTicks(int numInstructions) {
+	    Interrupt.this.advanceUserTicks(numInstructions);
+	}
     }
 }
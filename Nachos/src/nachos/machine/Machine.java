@@ -113,6 +113,45 @@ public final class Machine {
 	return result;
     }
 
+    /**
+     * Record that a job with a deadline has completed, for the statistics
+     * printed when Nachos halts.
+     *
+     * @param	missed	<tt>true</tt> if the job completed after its
+     *			deadline.
+     */
+    public static void recordDeadline(boolean missed) {
+	stats.numDeadlines++;
+	if (missed)
+	    stats.numDeadlineMisses++;
+    }
+
+    /**
+     * Record a page fault that the processor could not see, because it was
+     * reported as a TLB miss.
+     */
+    public static void recordPageFault() {
+	stats.numPageFaults++;
+    }
+
+    /**
+     * Record that the kernel evicted a page from memory.
+     *
+     * @param	swapped	<tt>true</tt> if the page had to be written to swap.
+     */
+    public static void recordPageEviction(boolean swapped) {
+	stats.numPageEvictions++;
+	if (swapped)
+	    stats.numSwapWrites++;
+    }
+
+    /**
+     * Record that the kernel read a page back from swap.
+     */
+    public static void recordSwapRead() {
+	stats.numSwapReads++;
+    }
+
     private static void processArgs() {
 	for (int i=0; i<args.length; ) {
 	    String arg = args[i++];
@@ -46,15 +46,23 @@ public final class Processor {
 	    registers[i] = 0;
 
 	mainMemory = new byte[pageSize * numPhysPages];
+	decodeCache = new Decoded[mainMemory.length / 4];
+
+	blockTranslation = Config.getBoolean("Processor.blockTranslation",
+					     false);
+	if (blockTranslation)
+	    blockCache = new Block[mainMemory.length / 4];
 
 	if (usingTLB) {
-	    translations = new TranslationEntry[tlbSize];
-	    for (int i=0; i<tlbSize; i++)
-		translations[i] = new TranslationEntry();
-	}
-	else {
-	    translations = null;
+	    tlbVPN = new int[tlbSize];
+	    tlbPPN = new int[tlbSize];
+	    tlbFlags = new int[tlbSize];
+	    tlbCacheVPN = new int[tlbCacheSize];
+	    tlbCacheIndex = new int[tlbCacheSize];
+	    flushTLBCache();
 	}
+
+	translations = null;
     }
 
     /**
@@ -92,8 +100,18 @@ public final class Processor {
 	Machine.autoGrader().runProcessor(privilege);
 
 	Instruction inst = new Instruction();
+
+	// tracing needs to see every instruction, so it forces the interpreter
+	boolean translating = blockTranslation &&
+	    !Lib.test(dbgProcessor) && !Lib.test(dbgDisassemble) &&
+	    !Lib.test(dbgFullDisassemble);
 	
 	while (true) {
+	    if (translating) {
+		runBlock(inst);
+		continue;
+	    }
+	    
 	    try {
 		inst.run();
 	    }
@@ -105,6 +123,148 @@ public final class Processor {
 	}
     }
 
+    /**
+     * Execute the translated basic block starting at the current PC, or as
+     * much of it as can run before the next pending interrupt is due.
+     *
+     * <p>
+     * Simulated time is charged once for the whole run instead of once per
+     * instruction, which is only equivalent to the interpreter as long as no
+     * interrupt would have fired in between. The run is therefore cut short
+     * at the next pending interrupt, when control leaves the block, when an
+     * instruction word no longer matches its translation, or when an
+     * instruction raises an exception. Each of these leaves the processor
+     * in exactly the state the interpreter would have, so the next block (or
+     * the exception handler) picks up from there.
+     *
+     * @param	inst	the instruction state to execute with.
+     */
+    private void runBlock(Instruction inst) {
+	int executed = 0;
+
+	try {
+	    inst.fetch();
+
+	    Block block = getBlock(inst.paddr, inst.value);
+
+	    long horizon = privilege.interrupt.nextPendingTime() -
+		privilege.stats.totalTicks;
+	    int limit = (int) Math.max(1, Math.min(block.length, horizon));
+
+	    int vaddr = registers[regPC];
+	    int paddr = inst.paddr;
+
+	    while (true) {
+		inst.decode(block.instructions[executed]);
+		inst.execute();
+		inst.writeBack();
+
+		if (++executed == limit)
+		    break;
+
+		vaddr += 4;
+		paddr += 4;
+
+		// stop if we branched out or the code was overwritten
+		if (registers[regPC] != vaddr ||
+		    Lib.bytesToInt(mainMemory, paddr) !=
+		    block.instructions[executed].value)
+		    break;
+
+		inst.paddr = paddr;
+		inst.value = block.instructions[executed].value;
+	    }
+	}
+	catch (MipsException e) {
+	    privilege.interrupt.advanceUserTicks(executed);
+	    e.handle();
+	    privilege.interrupt.tick(false);
+	    return;
+	}
+
+	privilege.interrupt.advanceUserTicks(executed-1);
+	privilege.interrupt.tick(false);
+    }
+
+    /**
+     * Return the translated basic block starting at the specified physical
+     * address, translating it first if it is not cached or if the code at
+     * that address has changed.
+     *
+     * @param	paddr	the physical address of the first instruction.
+     * @param	value	the instruction word currently at <i>paddr</i>.
+     * @return	the basic block starting at <i>paddr</i>.
+     */
+    private Block getBlock(int paddr, int value) {
+	Block block = blockCache[paddr/4];
+
+	if (block == null || block.instructions[0].value != value) {
+	    block = translateBlock(paddr);
+	    blockCache[paddr/4] = block;
+	}
+
+	return block;
+    }
+
+    /**
+     * Translate the basic block starting at the specified physical address.
+     * A block extends up to and including the delay slot of the first branch
+     * or jump, up to the first instruction that always raises an exception,
+     * or to the end of the physical page, whichever comes first.
+     *
+     * @param	paddr	the physical address of the first instruction.
+     * @return	the translated block.
+     */
+    private Block translateBlock(int paddr) {
+	int end = Math.min((paddr/pageSize + 1) * pageSize,
+			   paddr + maxBlockLength*4);
+
+	Decoded[] instructions = new Decoded[(end-paddr) / 4];
+	int length = 0;
+	boolean delaySlot = false;
+
+	for (int p=paddr; p<end; p+=4) {
+	    Decoded decoded = getDecoded(p, Lib.bytesToInt(mainMemory, p));
+	    instructions[length++] = decoded;
+
+	    if (delaySlot)
+		break;
+
+	    if (Lib.test(Mips.BRANCH, decoded.flags))
+		delaySlot = true;
+	    else if (decoded.operation == Mips.SYSCALL ||
+		     decoded.operation == Mips.UNIMPL ||
+		     decoded.operation == Mips.INVALID)
+		break;
+	}
+
+	return new Block(instructions, length);
+    }
+
+    /**
+     * Return the predecoded form of the instruction word at the specified
+     * physical address, decoding it again if the word has changed since it
+     * was last decoded.
+     *
+     * @param	paddr	the physical address of the instruction.
+     * @param	value	the instruction word currently at <i>paddr</i>.
+     * @return	the predecoded instruction.
+     */
+    private Decoded getDecoded(int paddr, int value) {
+	Decoded decoded = decodeCache[paddr/4];
+
+	if (decoded == null) {
+	    decoded = new Decoded();
+	    decoded.predecode(value);
+	    decodeCache[paddr/4] = decoded;
+	}
+	else if (decoded.value != value) {
+	    decoded.predecode(value);
+	}
+
+	return decoded;
+    }
+
     /**
      * Read and return the contents of the specified CPU register.
      *
@@ -198,7 +358,13 @@ public final class Processor {
 	Lib.assertTrue(usingTLB);
 	Lib.assertTrue(number >= 0 && number < tlbSize);
 
-	return new TranslationEntry(translations[number]);
+	int flags = tlbFlags[number];
+	
+	return new TranslationEntry(tlbVPN[number], tlbPPN[number],
+				    (flags & tlbValid) != 0,
+				    (flags & tlbReadOnly) != 0,
+				    (flags & tlbUsed) != 0,
+				    (flags & tlbDirty) != 0);
     }
 
     /**
@@ -215,7 +381,48 @@ public final class Processor {
 	Lib.assertTrue(usingTLB);
 	Lib.assertTrue(number >= 0 && number < tlbSize);
 
-	translations[number] = new TranslationEntry(entry);
+	tlbVPN[number] = entry.vpn;
+	tlbPPN[number] = entry.ppn;
+	tlbFlags[number] = (entry.valid ? tlbValid : 0) |
+	    (entry.readOnly ? tlbReadOnly : 0) |
+	    (entry.used ? tlbUsed : 0) |
+	    (entry.dirty ? tlbDirty : 0);
+
+	flushTLBCache();
+    }
+
+    /**
+     * Forget every cached TLB lookup. Called whenever a TLB entry changes, so
+     * that a cached index always names the first valid entry for its VPN,
+     * just as a scan of the whole TLB would.
+     */
+    private void flushTLBCache() {
+	for (int i=0; i<tlbCacheSize; i++)
+	    tlbCacheVPN[i] = -1;
+    }
+
+    /**
+     * Find the TLB entry that maps the specified virtual page, consulting the
+     * direct-mapped lookup cache before scanning the TLB.
+     *
+     * @param	vpn	the virtual page number to look up.
+     * @return	the index of the first valid TLB entry for <i>vpn</i>, or -1
+     *		if there is none.
+     */
+    private int lookupTLB(int vpn) {
+	int slot = vpn & (tlbCacheSize-1);
+	if (tlbCacheVPN[slot] == vpn)
+	    return tlbCacheIndex[slot];
+
+	for (int i=0; i<tlbSize; i++) {
+	    if ((tlbFlags[i] & tlbValid) != 0 && tlbVPN[i] == vpn) {
+		tlbCacheVPN[slot] = vpn;
+		tlbCacheIndex[slot] = i;
+		return i;
+	    }
+	}
+
+	return -1;
     }
 
     /**
@@ -305,57 +512,72 @@ public final class Processor {
 	}
 
 	// calculate virtual page number and offset from the virtual address
-	int vpn = pageFromAddress(vaddr);
-	int offset = offsetFromAddress(vaddr);
+	int vpn = vaddr >>> pageShift;
+	int offset = vaddr & (pageSize-1);
 
-	TranslationEntry entry = null;
+	int ppn;
 
 	// if not using a TLB, then the vpn is an index into the table
 	if (!usingTLB) {
+	    /* The kernel owns these entries and may change them at any time
+	     * without telling us, so they are read directly on every access.
+	     */
+	    TranslationEntry entry;
+	    
 	    if (translations == null || vpn >= translations.length ||
-		translations[vpn] == null ||
-		!translations[vpn].valid) {
+		(entry = translations[vpn]) == null || !entry.valid) {
 		privilege.stats.numPageFaults++;
 		Lib.debug(dbgProcessor, "\t\tpage fault");
 		throw new MipsException(exceptionPageFault, vaddr);
 	    }
 
-	    entry = translations[vpn];
+	    // check if trying to write a read-only page
+	    if (entry.readOnly && writing) {
+		Lib.debug(dbgProcessor, "\t\tread-only exception");
+		throw new MipsException(exceptionReadOnly, vaddr);
+	    }
+
+	    // check if physical page number is out of range
+	    ppn = entry.ppn;
+	    if (ppn < 0 || ppn >= numPhysPages) {
+		Lib.debug(dbgProcessor, "\t\tbad ppn");
+		throw new MipsException(exceptionBusError, vaddr);
+	    }
+
+	    // set used and dirty bits as appropriate
+	    entry.used = true;
+	    if (writing)
+		entry.dirty = true;
 	}
-	// else, look through all TLB entries for matching vpn
+	// else, find the TLB entry with a matching vpn
 	else {
-	    for (int i=0; i<tlbSize; i++) {
-		if (translations[i].valid && translations[i].vpn == vpn) {
-		    entry = translations[i];
-		    break;
-		}
-	    }
-	    if (entry == null) {
+	    int index = lookupTLB(vpn);
+	    if (index < 0) {
 		privilege.stats.numTLBMisses++;
 		Lib.debug(dbgProcessor, "\t\tTLB miss");
 		throw new MipsException(exceptionTLBMiss, vaddr);
 	    }
-	}
 
-	// check if trying to write a read-only page
-	if (entry.readOnly && writing) {
-	    Lib.debug(dbgProcessor, "\t\tread-only exception");
-	    throw new MipsException(exceptionReadOnly, vaddr);
-	}
+	    int flags = tlbFlags[index];
 
-	// check if physical page number is out of range
-	int ppn = entry.ppn;
-	if (ppn < 0 || ppn >= numPhysPages) {
-	    Lib.debug(dbgProcessor, "\t\tbad ppn");
-	    throw new MipsException(exceptionBusError, vaddr);
-	}
+	    // check if trying to write a read-only page
+	    if ((flags & tlbReadOnly) != 0 && writing) {
+		Lib.debug(dbgProcessor, "\t\tread-only exception");
+		throw new MipsException(exceptionReadOnly, vaddr);
+	    }
 
-	// set used and dirty bits as appropriate
-	entry.used = true;
-	if (writing)
-	    entry.dirty = true;
+	    // check if physical page number is out of range
+	    ppn = tlbPPN[index];
+	    if (ppn < 0 || ppn >= numPhysPages) {
+		Lib.debug(dbgProcessor, "\t\tbad ppn");
+		throw new MipsException(exceptionBusError, vaddr);
+	    }
 
-	int paddr = (ppn*pageSize) + offset;
+	    // set used and dirty bits as appropriate
+	    tlbFlags[index] = flags | tlbUsed | (writing ? tlbDirty : 0);
+	}
+
+	int paddr = (ppn << pageShift) + offset;
 
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
@@ -541,14 +763,36 @@ public final class Processor {
     private boolean usingTLB;
     /** Number of TLB entries. */
     private int tlbSize = 4;
+    /** The direct-mapped page table, if there is no TLB. */
+    private TranslationEntry[] translations;
+
+    /*
+     * The TLB itself, kept in parallel primitive arrays rather than as
+     * TranslationEntry objects. readTLBEntry() and writeTLBEntry() convert
+     * to and from entries, so the used and dirty bits set here are still
+     * visible to the kernel.
+     */
+    private int[] tlbVPN, tlbPPN, tlbFlags;
+    
+    private static final int
+	tlbValid	= 0x1,
+	tlbReadOnly	= 0x2,
+	tlbUsed		= 0x4,
+	tlbDirty	= 0x8;
+
     /**
-     * Either an associative or direct-mapped set of translation entries,
-     * depending on whether there is a TLB.
+     * A direct-mapped cache of TLB lookups, indexed by the low bits of the
+     * VPN. <tt>tlbCacheVPN[slot]</tt> is -1 if the slot is empty, otherwise
+     * <tt>tlbCacheIndex[slot]</tt> is the TLB index mapping that VPN.
      */
-    private TranslationEntry[] translations;
+    private int[] tlbCacheVPN, tlbCacheIndex;
+    /** Number of slots in the TLB lookup cache. Must be a power of 2. */
+    private static final int tlbCacheSize = 16;
 
     /** Size of a page, in bytes. */
     public static final int pageSize = 0x400;
+    /** Log base 2 of <tt>pageSize</tt>. */
+    private static final int pageShift = 10;
     /** Number of pages in a 32-bit address space. */
     public static final int maxPages = (int) (0x100000000L / pageSize);
     /** Number of physical pages in memory. */
@@ -556,6 +800,24 @@ public final class Processor {
     /** Main memory for user programs. */
     private byte[] mainMemory;
 
+    /**
+     * Predecoded instructions, indexed by physical word address. An entry is
+     * only trusted while its <tt>value</tt> still matches the word in main
+     * memory, so any write to the page (a store, <tt>CoffSection.loadPage()</tt>
+     * or a kernel copy into <tt>getMemory()</tt>) invalidates it implicitly.
+     */
+    private Decoded[] decodeCache;
+
+    /** <tt>true</tt> if runs of user code are executed a block at a time. */
+    private boolean blockTranslation;
+    /**
+     * Translated basic blocks, indexed by the physical word address of their
+     * first instruction. Only allocated if <tt>blockTranslation</tt> is set.
+     */
+    private Block[] blockCache = null;
+    /** The maximum number of instructions in a translated block. */
+    private static final int maxBlockLength = 64;
+
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
 
@@ -626,63 +888,53 @@ public final class Processor {
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
+	    if (Lib.test(dbgProcessor)) {
+		value = readMem(registers[regPC], 4);
+		paddr = -1;
+	    }
+	    else {
+		paddr = translate(registers[regPC], 4, false);
+		value = Lib.bytesToInt(mainMemory, paddr);
+	    }
 	}
 	
 	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
+	    Decoded decoded;
 
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
+	    if (paddr >= 0) {
+		decoded = getDecoded(paddr, value);
+	    }
+	    else {
+		decoded = new Decoded();
+		decoded.predecode(value);
 	    }
 
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	    decode(decoded);
+	}
+
+	private void decode(Decoded decoded) {
+	    op = decoded.op;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    func = decoded.func;
+	    target = decoded.target;
+	    imm = decoded.imm;
+
+	    operation = decoded.operation;
+	    name = decoded.name;
+	    format = decoded.format;
+	    flags = decoded.flags;
+	    size = decoded.size;
+	    dstReg = decoded.dstReg;
 
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
@@ -693,11 +945,6 @@ public final class Processor {
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -1052,7 +1299,7 @@ public final class Processor {
 	}
     
 	// state used to execute a single instruction
-	int value, op, rs, rt, rd, sh, func, target, imm;
+	int paddr, value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
 
@@ -1063,6 +1310,90 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * The parts of an instruction that depend only on the instruction word,
+     * and not on the register file. Computed once per word by
+     * <tt>predecode()</tt> and reused every time the word is executed again.
+     */
+    private static class Decoded {
+	void predecode(int value) {
+	    this.value = value;
+	    
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+	    imm = Lib.extend(value, 0, 16);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags)) {
+		imm &= 0xFFFF;
+	    }
+	}
+
+	int value, op, rs, rt, rd, sh, func, target, imm;
+	int operation, format, flags;
+	String name;
+
+	int size, dstReg;
+    }
+
+    /**
+     * A translated basic block: the predecoded instructions found at
+     * consecutive physical addresses, executed as a unit by
+     * <tt>runBlock()</tt>.
+     */
+    private static class Block {
+	Block(Decoded[] instructions, int length) {
+	    this.instructions = instructions;
+	    this.length = length;
+	}
+
+	Decoded[] instructions;
+	int length;
+    }
+
     private static class Mips {
 	Mips() {
 	}
@@ -27,8 +27,16 @@ public final class Stats {
 			   + ", writes " + numConsoleWrites);
 	System.out.println("Paging: page faults " + numPageFaults
 			   + ", TLB misses " + numTLBMisses);
+	if (numPageEvictions > 0)
+	    System.out.println("Swapping: evictions " + numPageEvictions
+			       + ", swap writes " + numSwapWrites
+			       + ", swap reads " + numSwapReads);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+	if (numDeadlines > 0)
+	    System.out.println("Deadlines: met " +
+			       (numDeadlines - numDeadlineMisses)
+			       + ", missed " + numDeadlineMisses);
     }
 
     /**
@@ -57,10 +65,20 @@ public final class Stats {
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
+    /** The total number of pages the kernel has evicted from memory. */
+    public int numPageEvictions = 0;
+    /** The number of those pages that were written to swap. */
+    public int numSwapWrites = 0;
+    /** The total number of pages the kernel has read back from swap. */
+    public int numSwapReads = 0;
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
+    /** The total number of jobs with a deadline that have completed. */
+    public int numDeadlines = 0;
+    /** The number of those jobs that completed after their deadline. */
+    public int numDeadlineMisses = 0;
 
     /**
      * The amount to advance simulated time after each user instructions is
@@ -5,7 +5,11 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
-import java.util.Vector;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +18,29 @@ import java.security.PrivilegedAction;
  * object.
  *
  * <p>
+ * By default each TCB gets a platform thread, and control is handed from one
+ * TCB to the next through the monitor of the TCB being woken. These
+ * <tt>nachos.conf</tt> keys change this:
+ * <ul>
+ * <li><tt>TCB.parkHandoff</tt>: hand control over with
+ * <tt>LockSupport.park()</tt>/<tt>unpark()</tt> instead of
+ * <tt>wait()</tt>/<tt>notify()</tt>, so a context switch wakes exactly one
+ * thread without going through a monitor.
+ * <li><tt>TCB.virtualThreads</tt>: run every TCB after the first on a
+ * virtual thread, if the JVM supports them. This implies
+ * <tt>TCB.parkHandoff</tt>, since a virtual thread blocked in a monitor
+ * would pin its carrier thread. On older JVMs a warning is printed and
+ * platform threads are used.
+ * <li><tt>TCB.singleCarrier</tt>: with <tt>TCB.virtualThreads</tt>, limit
+ * the virtual thread scheduler to one carrier thread. Every TCB but the
+ * first is then a continuation on that carrier, and a context switch between
+ * two of them just unmounts one continuation and mounts the other, without
+ * the OS scheduler getting involved.
+ * </ul>
+ * <tt>TCB.maxThreads</tt> overrides the default limit of <tt>maxThreads</tt>
+ * running TCBs, which mostly exists to protect the OS from platform threads.
+ *
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -40,6 +67,105 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	threadLimit = Config.getInteger("TCB.maxThreads", maxThreads);
+
+	if (Config.getBoolean("TCB.virtualThreads", false))
+	    findVirtualThreadBuilder(Config.getBoolean("TCB.singleCarrier",
+						       false));
+
+	parkHandoff = (virtualThreadBuilder != null ||
+		       Config.getBoolean("TCB.parkHandoff", false));
+    }
+
+    /**
+     * Look up <tt>Thread.ofVirtual()</tt> reflectively, so that this class
+     * still loads on JVMs that predate virtual threads. Leaves
+     * <tt>virtualThreadBuilder</tt> <tt>null</tt>, and prints a warning, if
+     * they are not available. Must be called before the security manager is
+     * enabled.
+     *
+     * @param	singleCarrier	<tt>true</tt> if virtual threads should all
+     *				share one carrier thread.
+     */
+    private static void findVirtualThreadBuilder(final boolean singleCarrier) {
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			/* The JDK reads these when the first virtual thread is
+			 * created, so they must be set before that. Don't
+			 * override values given on the command line.
+			 */
+			if (singleCarrier) {
+			    setDefaultProperty(
+				"jdk.virtualThreadScheduler.parallelism", "1");
+			    setDefaultProperty(
+				"jdk.virtualThreadScheduler.maxPoolSize", "1");
+			}
+
+			Class<?> clsBuilder =
+			    Class.forName("java.lang.Thread$Builder");
+			virtualThreadBuilder =
+			    Thread.class.getMethod("ofVirtual").invoke(null);
+			unstartedThread =
+			    clsBuilder.getMethod("unstarted", Runnable.class);
+
+			/* Run one virtual thread to completion, so that the
+			 * JDK starts its scheduler and first carrier thread
+			 * now, before the security manager is enabled, and so
+			 * that any failure shows up here rather than in the
+			 * first fork().
+			 */
+			Thread warmup = (Thread)
+			    unstartedThread.invoke(virtualThreadBuilder,
+						   new Runnable() {
+						       public void run() { }
+						   });
+			warmup.start();
+			warmup.join();
+
+			/* Under a security manager, the first carrier created
+			 * later is audited as a Thread subclass, which
+			 * initializes this class and needs
+			 * suppressAccessChecks to do it.
+			 */
+			Class.forName("java.util.stream.Collectors");
+		    }
+		    catch (Exception e) {
+			System.err.println("\nWarning: TCB.virtualThreads " +
+					   "ignored, virtual threads not " +
+					   "available: " + e);
+			virtualThreadBuilder = null;
+			unstartedThread = null;
+		    }
+		}
+	    });
+    }
+
+    private static void setDefaultProperty(String key, String value) {
+	if (System.getProperty(key) == null)
+	    System.setProperty(key, value);
+    }
+
+    /**
+     * Create the Java thread for a TCB, using a virtual thread if they were
+     * requested and are available. Must be called with privilege.
+     *
+     * @param	target	the code the new thread will run.
+     * @return	the new, unstarted thread.
+     */
+    private static Thread newJavaThread(Runnable target) {
+	if (virtualThreadBuilder != null) {
+	    try {
+		return (Thread) unstartedThread.invoke(virtualThreadBuilder,
+						       target);
+	    }
+	    catch (Exception e) {
+		Lib.assertNotReached("could not create virtual thread: " + e);
+	    }
+	}
+
+	return new Thread(target);
     }
     
     /**
@@ -55,7 +181,7 @@ public final class TCB {
 	 * The only way this assumption could be broken is if one of our
 	 * non-Nachos threads used the TCB code.
 	 */
-	
+
 	/* Make sure this TCB has not already been started. If done is false,
 	 * then destroy() has not yet set javaThread back to null, so we can
 	 * use javaThread as a reliable indicator of whether or not start() has
@@ -66,7 +192,7 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() < threadLimit);
 
 	isFirstTCB = (currentTCB == null);
 
@@ -94,7 +220,7 @@ public final class TCB {
 		};
 
 	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
+		    public void run() { javaThread = newJavaThread(tcbTarget); }
 		});
 
 	    /* The Java thread hasn't yet started, but we need to get it
@@ -141,7 +267,7 @@ public final class TCB {
 	// make sure AutoGrader.runningThread() called associateThread()
 	Lib.assertTrue(currentTCB.associated);
 	currentTCB.associated = false;
-	
+
 	// can't switch from a TCB to itself
 	if (this == currentTCB)
 	    return;
@@ -157,7 +283,7 @@ public final class TCB {
 
 	TCB previous = currentTCB;
 	previous.running = false;
-	
+
 	this.interrupt();
 	previous.yield();
     }
@@ -185,7 +311,7 @@ public final class TCB {
 
 	this.interrupt();
 	currentTCB.waitForInterrupt();
-	
+
 	this.javaThread = null;
     }
 
@@ -244,15 +370,24 @@ public final class TCB {
 		privilege.exit(1);
 	    }
 
-	    runningThreads.removeElement(this);
+	    runningThreads.remove(this);
 	    if (runningThreads.isEmpty())
 		privilege.exit(0);
+
+	    /* Virtual threads are daemon threads, so the JVM would exit as
+	     * soon as the first TCB's thread returned, even though other TCBs
+	     * are still running. Keep it alive until Nachos exits.
+	     */
+	    if (isFirstTCB && virtualThreadBuilder != null) {
+		for (;;)
+		    LockSupport.park(this);
+	    }
 	}
 	catch (Throwable e) {
 	    System.out.print("\n");
 	    e.printStackTrace();
 
-	    runningThreads.removeElement(this);
+	    runningThreads.remove(this);
 	    if (runningThreads.isEmpty())
 		privilege.exit(1);
 	    else
@@ -270,7 +405,7 @@ public final class TCB {
      */
     private void yield() {
 	waitForInterrupt();
-	
+
 	if (done) {
 	    currentTCB.interrupt();
 	    throw new ThreadDeath();
@@ -287,7 +422,21 @@ public final class TCB {
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
      */
-    private synchronized void waitForInterrupt() {
+    private void waitForInterrupt() {
+	if (parkHandoff) {
+	    // park() may return spuriously, so keep checking the flag
+	    while (!running)
+		LockSupport.park(this);
+	}
+	else {
+	    waitForMonitor();
+	}
+    }
+
+    private synchronized void waitForMonitor() {
+	// never reached with virtual threads, whose carriers this would pin
+	Lib.assertTrue(virtualThreadBuilder == null);
+
 	while (!running) {
 	    try { wait(); }
 	    catch (InterruptedException e) { }
@@ -300,7 +449,17 @@ public final class TCB {
      * starting and destroying TCBs, as well as in context switching to this
      * TCB.
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
+	if (parkHandoff) {
+	    running = true;
+	    LockSupport.unpark(javaThread);
+	}
+	else {
+	    notifyMonitor();
+	}
+    }
+
+    private synchronized void notifyMonitor() {
 	running = true;
 	notify();
     }
@@ -332,6 +491,22 @@ public final class TCB {
      */
     public static final int maxThreads = 250;
 
+    /**
+     * The maximum number of running TCBs actually enforced. Set from
+     * <tt>TCB.maxThreads</tt>, and defaults to <tt>maxThreads</tt>.
+     */
+    private static int threadLimit = maxThreads;
+
+    /** <tt>true</tt> if TCBs hand off control using park and unpark. */
+    private static boolean parkHandoff = false;
+    /**
+     * The result of <tt>Thread.ofVirtual()</tt>, or <tt>null</tt> if TCBs run
+     * on platform threads.
+     */
+    private static Object virtualThreadBuilder = null;
+    /** <tt>Thread.Builder.unstarted(Runnable)</tt>. */
+    private static Method unstartedThread = null;
+
     /**
      * A reference to the currently running TCB. It is initialized to
      * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -348,8 +523,8 @@ public final class TCB {
     private static TCB currentTCB = null;
 
     /**
-     * A vector containing all <i>running</i> TCB objects. It is initialized to
-     * an empty vector when the <tt>TCB</tt> class is loaded. TCB objects are
+     * A set containing all <i>running</i> TCB objects. It is initialized to
+     * an empty set when the <tt>TCB</tt> class is loaded. TCB objects are
      * added only in <tt>start(Runnable)</tt>, which can only be invoked once
      * on each TCB object. TCB objects are removed only in each of the
      * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
@@ -357,9 +532,15 @@ public final class TCB {
      * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
      * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
      * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once
-     * the first TCB is created, this vector is basically never empty.
+     * the first TCB is created, this set is basically never empty.
+     *
+     * <p>
+     * A dying TCB removes itself after waking the TCB that destroyed it, so
+     * the set must be synchronized. It is a hash set so that removal stays
+     * constant time with very many TCBs.
      */
-    private static Vector<TCB> runningThreads = new Vector<TCB>();
+    private static Set<TCB> runningThreads =
+	Collections.synchronizedSet(new HashSet<TCB>());
     
     private static Privilege privilege;
     private static KThread toBeDestroyed = null;
@@ -387,8 +568,12 @@ public final class TCB {
      * when the associated Java thread ought to run ASAP. When starting or
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
+     *
+     * <p>
+     * Volatile so that a write before <tt>unpark()</tt> is seen by the woken
+     * thread; with the monitor handoff the monitor already guarantees this.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
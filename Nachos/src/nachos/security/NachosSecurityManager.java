@@ -158,6 +158,34 @@ public class NachosSecurityManager extends SecurityManager {
 	return result;
     }
     
+    /**
+     * Test if the permission being checked is one that the JDK checks while
+     * constructing a carrier thread for its virtual thread scheduler. Such
+     * threads are created on demand in whichever thread happens to submit work
+     * to the scheduler, which is often a TCB running without privilege.
+     *
+     * @param	perm	the permission being checked.
+     * @return	<tt>true</tt> if a carrier thread is being constructed and
+     *		needs the permission.
+     */
+    private boolean isCreatingCarrierThread(Permission perm) {
+	if (!(perm instanceof RuntimePermission))
+	    return false;
+
+	String name = perm.getName();
+	if (!name.equals("modifyThread") &&
+	    !name.equals("modifyThreadGroup") &&
+	    !name.equals("setContextClassLoader") &&
+	    !name.equals("enableContextClassLoaderOverride"))
+	    return false;
+
+	for (Class<?> c : getClassContext()) {
+	    if (c.getName().equals("jdk.internal.misc.CarrierThread"))
+		return true;
+	}
+	return false;
+    }
+
     private void no() {
 	throw new SecurityException();
     }
@@ -272,6 +300,10 @@ public class NachosSecurityManager extends SecurityManager {
 	    }
 	}
 
+	// the JDK creates carrier threads for virtual TCBs as it needs them
+	if (!isPrivileged() && isCreatingCarrierThread(perm))
+	    return;
+
 	// default to requiring privilege
 	verifyPrivilege(perm);
     }
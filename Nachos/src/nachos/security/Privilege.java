@@ -158,6 +158,24 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Return the time at which the earliest pending interrupt is due.
+	 *
+	 * @return	the time of the next pending interrupt, or
+	 *		<tt>Long.MAX_VALUE</tt> if no interrupts are pending.
+	 */
+	public long nextPendingTime();
+
+	/**
+	 * Advance the simulated time by the specified number of user
+	 * instructions without checking for due interrupts. No pending
+	 * interrupt may become due as a result.
+	 *
+	 * @param	numInstructions	the number of user instructions that
+	 *				were executed.
+	 */
+	public void advanceUserTicks(int numInstructions);
     }
 
     /**
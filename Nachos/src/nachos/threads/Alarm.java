@@ -1,10 +1,34 @@
 package nachos.threads;
-import java.util.PriorityQueue;
+
 import nachos.machine.*;
-import nachos.machine.*
-;/**
+
+/**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Pending wake-ups are kept in a hierarchical timing wheel. Time is divided
+ * into units of <tt>2^unitShift</tt> ticks. The first level has one slot per
+ * unit for the next 256 units, and each further level has 64 slots, each as
+ * wide as the whole level below it. A wake-up is filed in the lowest level
+ * whose range covers it, in constant time. As time passes, the slots of the
+ * higher levels are cascaded down one level at a time, so every wake-up is
+ * moved at most once per level before it expires. Each timer interrupt then
+ * only visits the first-level slots for the time that passed since the last
+ * interrupt, however many threads are asleep.
+ *
+ * <p>
+ * Wake-ups live in pooled nodes, so sleeping does not allocate. A wake-up
+ * can also be scheduled with <tt>schedule()</tt>, which returns a handle
+ * that <tt>cancel()</tt> accepts.
+ *
+ * <p>
+ * A thread that does not need to wake on time can set a timer slack with
+ * <tt>setTimerSlack()</tt>. Its wake-ups are then pushed back, by no more
+ * than the slack, to a round time that other slack wake-ups nearby are also
+ * pushed back to, so that they are woken together. A timer interrupt that
+ * wakes nobody only preempts the current thread once it has run for
+ * <tt>Alarm.quantum</tt> ticks; by default, that is always.
  */
 public class Alarm {
     /**
@@ -14,28 +38,45 @@ public class Alarm {
      * <p><b>Note</b>: Nachos will not function correctly with more than one
      * alarm.
      */
-	
-	private PriorityQueue<WaitingThread> waitQueue = new PriorityQueue<WaitingThread>();
-	
     public Alarm() {
 	Machine.timer().setInterruptHandler(new Runnable() {
 		public void run() { timerInterrupt(); }
 	    });
+
+	current = Machine.timer().getTime() >> unitShift;
+	quantum = Config.getInteger("Alarm.quantum", 0);
+	Lib.assertTrue(quantum >= 0);
     }
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
      * periodically (approximately every 500 clock ticks). Causes the current
      * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * that should be run, unless no thread was woken and the current thread
+     * has not yet run for a quantum.
      */
     public void timerInterrupt() {
-    boolean inStatus = Machine.interrupt().disable();
-    while(!waitQueue.isEmpty() && waitQueue.peek().wakeupTime<=Machine.timer().getTime()) {
-    	waitQueue.poll().thread.ready();
-    }
-    KThread.yield();
-    Machine.interrupt().restore(inStatus);
+	boolean intStatus = Machine.interrupt().disable();
+
+	long now = Machine.timer().getTime();
+	int woken = expire(now);
+
+	/* The interrupt before the first one a thread is seen at is as close
+	 * as we can tell to when it was dispatched.
+	 */
+	KThread thread = KThread.currentThread();
+	if (thread != sliceThread) {
+	    sliceThread = thread;
+	    sliceStart = lastInterrupt;
+	}
+	lastInterrupt = now;
+
+	if (woken > 0 || now - sliceStart >= quantum) {
+	    sliceThread = null;
+	    KThread.yield();
+	}
+
+	Machine.interrupt().restore(intStatus);
     }
 
     /**
@@ -53,30 +94,467 @@ public class Alarm {
      * @see	nachos.machine.Timer#getTime()
      */
     public void waitUntil(long x) {
-	// for now, cheat just to get something working (busy waiting is bad)
-    //Put the current thread to sleep for at least x ticks, waking it up in the timer interrupt handler. The thread must be woken up (placed in the scheduler ready set) during the first timer interrupt where
-    //(current time) >= (WaitUntil called time)+(x)
-	long wakeupTime = Machine.timer().getTime() + x;
 	KThread thread = KThread.currentThread();
-	WaitingThread waitThread = new WaitingThread(thread, wakeupTime);
-	boolean machStat = Machine.interrupt().disable();
-	waitQueue.add(waitThread);
+	long wakeupTime = applySlack(Machine.timer().getTime() + x,
+				     thread.timerSlack);
+
+	boolean intStatus = Machine.interrupt().disable();
+	add(wakeupTime, thread, null);
 	KThread.sleep();
-	Machine.interrupt().restore(machStat);
-    }
-    
-    private class WaitingThread implements Comparable<WaitingThread>{
-    	KThread thread;
-    	long wakeupTime;
-    	public WaitingThread(KThread thread, long wakeupTime) {
-    		this.thread = thread;
-    		this.wakeupTime = wakeupTime;
-    	}
-    	
-    	public int compareTo(WaitingThread thread){
-    		if(this.wakeupTime<thread.wakeupTime)return -1;
-    		else if(this.wakeupTime>thread.wakeupTime)return 1;
-    		else return 0;
-    	}
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Allow the current thread's wake-ups to be up to <i>slack</i> ticks
+     * late, so that they can be batched with other wake-ups. This applies to
+     * <tt>waitUntil()</tt> and to the timeouts of <tt>waitOn()</tt>.
+     *
+     * @param	slack	the number of ticks a wake-up may be late, or 0 to
+     *			wake on time.
+     */
+    public void setTimerSlack(long slack) {
+	Lib.assertTrue(slack >= 0);
+
+	KThread.currentThread().timerSlack = slack;
     }
+
+    /**
+     * Return the latest time within <i>slack</i> ticks after <i>time</i>
+     * that is a multiple of the largest power of two possible, so that
+     * nearby times with the same slack tend to round to the same time.
+     */
+    private static long applySlack(long time, long slack) {
+	if (slack <= 0)
+	    return time;
+
+	long limit = time + slack;
+	// clear every bit of limit below the highest one it differs from time in
+	long mask = Long.highestOneBit(time ^ limit) - 1;
+	return limit & ~mask;
+    }
+
+    /**
+     * Run the specified handler during the first timer interrupt at least
+     * <i>x</i> ticks from now, unless it is cancelled first. The handler is
+     * called with interrupts disabled and must not block. Must be called with
+     * interrupts disabled.
+     *
+     * @param	x	the minimum number of clock ticks to wait.
+     * @param	handler	the handler to run.
+     * @return	a handle that can be passed to <tt>cancel()</tt>.
+     */
+    public long schedule(long x, Runnable handler) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	TimerNode node = add(Machine.timer().getTime() + x, null, handler);
+	return ((long) node.generation << 32) | node.index;
+    }
+
+    /**
+     * Cancel a handler scheduled by <tt>schedule()</tt>. Must be called with
+     * interrupts disabled.
+     *
+     * @param	handle	the handle returned by <tt>schedule()</tt>.
+     * @return	<tt>true</tt> if the handler had not yet run, and now never
+     *		will.
+     */
+    public boolean cancel(long handle) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	int index = (int) handle;
+	int generation = (int) (handle >>> 32);
+	if (index < 0 || index >= poolSize)
+	    return false;
+
+	TimerNode node = pool[index];
+	if (node.generation != generation || node.list < 0)
+	    return false;
+
+	unlink(node);
+	free(node);
+	return true;
+    }
+
+    /**
+     * Put the current thread to sleep on the specified queue, as with
+     * <tt>waitForAccess()</tt> and <tt>KThread.sleep()</tt>, for at most
+     * <i>x</i> ticks. If the thread is still waiting during the first timer
+     * interrupt at least <i>x</i> ticks from now, it is removed from the queue
+     * and readied. Must be called with interrupts disabled.
+     *
+     * @param	waitQueue	the queue to wait on.
+     * @param	x	the maximum number of clock ticks to wait.
+     * @return	<tt>true</tt> if the thread was woken by the queue, or
+     *		<tt>false</tt> if it timed out.
+     */
+    public boolean waitOn(ThreadQueue waitQueue, long x) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	KThread thread = KThread.currentThread();
+	TimerNode node = add(applySlack(Machine.timer().getTime() + x,
+					thread.timerSlack), thread, null);
+	node.queue = waitQueue;
+
+	waitQueue.waitForAccess(thread);
+	KThread.sleep();
+
+	// the node is ours to free, whether or not it has fired
+	boolean timedOut = node.timedOut;
+	if (node.list >= 0)
+	    unlink(node);
+	free(node);
+	return !timedOut;
+    }
+
+    /**
+     * Finish the current thread's job, and wait until its next job is released.
+     * Only does anything for a periodic thread under a scheduler that knows
+     * its period, such as <tt>EDFScheduler</tt>; if the next release has
+     * already passed, return at once.
+     */
+    public void waitForNextPeriod() {
+	boolean intStatus = Machine.interrupt().disable();
+	long release = ThreadedKernel.scheduler.finishJob(KThread.currentThread());
+	Machine.interrupt().restore(intStatus);
+
+	long now = Machine.timer().getTime();
+	if (release > now)
+	    waitUntil(release - now);
+    }
+
+    /**
+     * File a wake-up for the specified time.
+     */
+    private TimerNode add(long time, KThread thread, Runnable handler) {
+	TimerNode node = allocate();
+	node.time = time;
+	node.thread = thread;
+	node.handler = handler;
+	insert(node);
+	return node;
+    }
+
+    /**
+     * Put a node in the list for its time: the due list if its unit has
+     * already been passed, otherwise the lowest level that reaches it.
+     */
+    private void insert(TimerNode node) {
+	long unit = node.time >> unitShift;
+	long delta = unit - current;
+
+	int list;
+	if (delta < 0) {
+	    list = dueList;
+	}
+	else if (delta < firstSlots) {
+	    list = (int) (unit & (firstSlots-1));
+	}
+	else {
+	    int level = 1;
+	    while (level < levels-1 && delta >= (long) slots << shift(level))
+		level++;
+
+	    long slot = unit >> shift(level);
+	    // beyond the top level's range: park it in the slot cascaded last
+	    if (delta >= (long) slots << shift(level))
+		slot = (current >> shift(level)) - 1;
+
+	    list = firstSlots + (level-1)*slots + (int) (slot & (slots-1));
+	}
+
+	/* Keep each list sorted by time, so that threads are woken in the
+	 * order they asked for. Most wake-ups go at the end.
+	 */
+	TimerNode after = tails[list];
+	while (after != null && after.time > node.time)
+	    after = after.prev;
+
+	node.list = list;
+	node.prev = after;
+	node.next = (after == null) ? heads[list] : after.next;
+	if (node.prev == null)
+	    heads[list] = node;
+	else
+	    node.prev.next = node;
+	if (node.next == null)
+	    tails[list] = node;
+	else
+	    node.next.prev = node;
+
+	counts[levelOf(list)]++;
+    }
+
+    private void unlink(TimerNode node) {
+	int list = node.list;
+	if (node.prev == null)
+	    heads[list] = node.next;
+	else
+	    node.prev.next = node.next;
+	if (node.next == null)
+	    tails[list] = node.prev;
+	else
+	    node.next.prev = node.prev;
+	node.prev = node.next = null;
+	node.list = -1;
+
+	counts[levelOf(list)]--;
+    }
+
+    /**
+     * Fire every wake-up due at or before <tt>now</tt>, advancing the wheel.
+     *
+     * @return	the number of wake-ups fired.
+     */
+    private int expire(long now) {
+	int woken = fire(dueList, now);
+
+	long unit = now >> unitShift;
+	while (true) {
+	    cascade();
+	    if (current >= unit)
+		break;
+
+	    int level = 0;
+	    while (level < levels && counts[level] == 0)
+		level++;
+
+	    if (level == levels) {
+		// nothing is filed anywhere, so skip straight ahead
+		current = unit;
+	    }
+	    else if (level > 0) {
+		// nothing below this level, skip to its next cascade
+		long span = 1L << shift(level);
+		current = Math.min((current | (span-1)) + 1, unit);
+	    }
+	    else {
+		woken += fire((int) (current & (firstSlots-1)), now);
+		current++;
+	    }
+	}
+
+	woken += fire((int) (current & (firstSlots-1)), now);
+	return woken;
+    }
+
+    /**
+     * Fire the wake-ups in the specified list whose time has come.
+     *
+     * @return	the number of wake-ups fired.
+     */
+    private int fire(int list, long now) {
+	int fired = 0;
+	while (heads[list] != null && heads[list].time <= now) {
+	    TimerNode node = heads[list];
+	    KThread thread = node.thread;
+	    Runnable handler = node.handler;
+
+	    unlink(node);
+	    if (node.queue != null) {
+		/* A timed wait, whose thread frees the node when it returns.
+		 * If the queue has already woken the thread, leave it be.
+		 */
+		node.timedOut = node.queue.remove(thread);
+		if (!node.timedOut)
+		    continue;
+	    }
+	    else {
+		free(node);
+	    }
+
+	    if (thread != null)
+		thread.ready();
+	    else
+		handler.run();
+	    fired++;
+	}
+	return fired;
+    }
+
+    /**
+     * When <tt>current</tt> reaches a slot boundary of the higher levels,
+     * move the wake-ups in the slots now starting down a level, highest
+     * level first so that they can keep cascading.
+     */
+    private void cascade() {
+	if (cascaded == current)
+	    return;
+	cascaded = current;
+
+	for (int level=levels-1; level>0; level--) {
+	    if ((current & ((1L << shift(level)) - 1)) != 0)
+		continue;
+
+	    int slot = (int) ((current >> shift(level)) & (slots-1));
+	    int list = firstSlots + (level-1)*slots + slot;
+
+	    TimerNode node = heads[list];
+	    heads[list] = tails[list] = null;
+	    while (node != null) {
+		TimerNode next = node.next;
+		counts[level]--;
+		node.prev = node.next = null;
+		insert(node);
+		node = next;
+	    }
+	}
+    }
+
+    /** The number of units covered by one slot of the specified level. */
+    private static int shift(int level) {
+	return (level == 0) ? 0 : firstShift + (level-1)*slotShift;
+    }
+
+    private static int levelOf(int list) {
+	if (list < firstSlots)
+	    return 0;
+	else if (list == dueList)
+	    return levels;
+	else
+	    return 1 + (list - firstSlots) / slots;
+    }
+
+    private TimerNode allocate() {
+	if (freeNodes == null) {
+	    if (poolSize == pool.length) {
+		TimerNode[] larger = new TimerNode[poolSize*2];
+		System.arraycopy(pool, 0, larger, 0, poolSize);
+		pool = larger;
+	    }
+
+	    TimerNode node = new TimerNode();
+	    node.index = poolSize;
+	    pool[poolSize++] = node;
+	    return node;
+	}
+
+	TimerNode node = freeNodes;
+	freeNodes = node.next;
+	node.next = null;
+	return node;
+    }
+
+    private void free(TimerNode node) {
+	node.thread = null;
+	node.handler = null;
+	node.queue = null;
+	node.timedOut = false;
+	node.generation++;
+	node.next = freeNodes;
+	freeNodes = node;
+    }
+
+    /**
+     * Tests that sleepers do not wake early, that a cancelled handler never
+     * runs, that a handle goes stale once its handler has run, and that timer
+     * slack batches wake-ups without making any earlier or later than
+     * allowed.
+     */
+    public static void selfTest() {
+	long[] batched = new long[1000];
+	int batches = 0;
+	for (int i=0; i<batched.length; i++) {
+	    long time = 100000 + i;
+	    batched[i] = applySlack(time, 1000);
+	    Lib.assertTrue(batched[i] >= time && batched[i] <= time + 1000);
+	    if (i == 0 || batched[i] != batched[i-1])
+		batches++;
+	}
+	Lib.assertTrue(batches <= 4);
+
+	Alarm alarm = ThreadedKernel.alarm;
+	final int sleepers = 10;
+	final long[] wokenAt = new long[sleepers];
+	final Semaphore done = new Semaphore(0);
+
+	for (int i=0; i<sleepers; i++) {
+	    final int id = i;
+	    // a spread of wake-ups, some far enough to need cascading
+	    final long x = ((sleepers-i) * 7919L) % 20000;
+	    new KThread(new Runnable() {
+		    public void run() {
+			long start = Machine.timer().getTime();
+			ThreadedKernel.alarm.waitUntil(x);
+			wokenAt[id] = Machine.timer().getTime();
+			Lib.assertTrue(wokenAt[id] >= start + x);
+			done.V();
+		    }
+		}).setName("sleeper " + i).fork();
+	}
+
+	final boolean[] ran = new boolean[2];
+	boolean intStatus = Machine.interrupt().disable();
+	long cancelled = alarm.schedule(1000, new Runnable() {
+		public void run() { ran[0] = true; }
+	    });
+	long kept = alarm.schedule(1000, new Runnable() {
+		public void run() { ran[1] = true; }
+	    });
+	Lib.assertTrue(alarm.cancel(cancelled));
+	Lib.assertTrue(!alarm.cancel(cancelled));
+	Machine.interrupt().restore(intStatus);
+
+	for (int i=0; i<sleepers; i++)
+	    done.P();
+
+	intStatus = Machine.interrupt().disable();
+	Lib.assertTrue(!ran[0] && ran[1]);
+	Lib.assertTrue(!alarm.cancel(kept));
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * A pending wake-up, either of a sleeping thread or of a handler. For a
+     * thread in <tt>waitOn()</tt>, it also holds the queue the thread waits
+     * on, and whether the wait timed out.
+     */
+    private static class TimerNode {
+	long time;
+	KThread thread;
+	Runnable handler;
+	ThreadQueue queue;
+	boolean timedOut;
+	TimerNode prev, next;
+	/** The list this node is in, or -1 while it is free. */
+	int list = -1;
+	/** Bumped every time the node is freed, to invalidate old handles. */
+	int generation = 0;
+	/** This node's position in the pool. */
+	int index;
+    }
+
+    /** The log base 2 of the ticks in one unit. */
+    private static final int unitShift = 4;
+    /** The first level has <tt>2^firstShift</tt> slots, one per unit. */
+    private static final int firstShift = 8;
+    private static final int firstSlots = 1 << firstShift;
+    /** The higher levels have <tt>2^slotShift</tt> slots each. */
+    private static final int slotShift = 6;
+    private static final int slots = 1 << slotShift;
+    /** The number of levels, including the first. */
+    private static final int levels = 6;
+    /** The list for wake-ups whose unit has already been passed. */
+    private static final int dueList = firstSlots + (levels-1)*slots;
+
+    private TimerNode[] heads = new TimerNode[dueList+1];
+    private TimerNode[] tails = new TimerNode[dueList+1];
+    /** The number of nodes filed in each level, and in the due list. */
+    private int[] counts = new int[levels+1];
+
+    /** The unit the wheel has advanced to; earlier units are all fired. */
+    private long current;
+    /** The value of <tt>current</tt> the last cascade was done for. */
+    private long cascaded = -1;
+
+    /** How long a thread runs before an interrupt that wakes nobody yields. */
+    private int quantum;
+    /** The thread seen running at the last interrupt that did not preempt. */
+    private KThread sliceThread = null;
+    /** When <tt>sliceThread</tt> was dispatched, as close as is known. */
+    private long sliceStart = 0;
+    private long lastInterrupt = 0;
+
+    private TimerNode[] pool = new TimerNode[16];
+    private int poolSize = 0;
+    private TimerNode freeNodes = null;
 }
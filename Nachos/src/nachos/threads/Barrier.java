@@ -0,0 +1,118 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>Barrier</tt> holds a fixed number of threads, its <i>parties</i>,
+ * until they have all called <tt>await()</tt>, and then lets them all
+ * through at once. The barrier can then be used again.
+ *
+ * <p>
+ * The last thread to arrive can first run a <i>barrier action</i>, which
+ * sees everything the other parties did before arriving.
+ */
+public class Barrier {
+    /**
+     * Allocate a new barrier with no barrier action.
+     *
+     * @param	parties	the number of threads that must call
+     *			<tt>await()</tt> before any of them is let through.
+     */
+    public Barrier(int parties) {
+	this(parties, null);
+    }
+
+    /**
+     * Allocate a new barrier.
+     *
+     * @param	parties	the number of threads that must call
+     *			<tt>await()</tt> before any of them is let through.
+     * @param	action	run by the last thread to arrive, before the others
+     *			are woken up, or <tt>null</tt>.
+     */
+    public Barrier(int parties, Runnable action) {
+	Lib.assertTrue(parties > 0);
+
+	this.parties = parties;
+	this.action = action;
+	waiting = 0;
+    }
+
+    /**
+     * Wait until every party has called <tt>await()</tt>.
+     *
+     * @return	the order in which the current thread arrived, from
+     *		<tt>parties-1</tt> for the first to 0 for the last.
+     */
+    public int await() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int index = parties-1 - waiting;
+	if (index > 0) {
+	    waiting++;
+	    waitQueue.waitForAccess(KThread.currentThread());
+	    KThread.sleep();
+	}
+	else {
+	    if (action != null)
+		action.run();
+
+	    // everyone leaves before anyone can arrive for the next cycle
+	    waiting = 0;
+	    for (KThread thread; (thread = waitQueue.nextThread()) != null; )
+		thread.ready();
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return index;
+    }
+
+    /**
+     * Return the number of parties this barrier waits for.
+     *
+     * @return	the number of parties.
+     */
+    public int getParties() {
+	return parties;
+    }
+
+    /**
+     * Test that no thread passes the barrier before all have reached it, in
+     * several cycles.
+     */
+    public static void selfTest() {
+	final int parties = 4, rounds = 3;
+	final int[] arrivals = new int[1], cycles = new int[1];
+	final Barrier barrier = new Barrier(parties, new Runnable() {
+		public void run() {
+		    Lib.assertTrue(arrivals[0] == (cycles[0]+1) * parties);
+		    cycles[0]++;
+		}
+	    });
+
+	for (int i=0; i<parties-1; i++) {
+	    new KThread(new Runnable() {
+		    public void run() {
+			for (int r=0; r<rounds; r++) {
+			    arrivals[0]++;
+			    barrier.await();
+			}
+		    }
+		}).setName("barrier party " + i).fork();
+	}
+
+	for (int r=0; r<rounds; r++) {
+	    arrivals[0]++;
+	    barrier.await();
+	    Lib.assertTrue(arrivals[0] >= (r+1) * parties);
+	}
+	Lib.assertTrue(cycles[0] == rounds);
+    }
+
+    private int parties;
+    private Runnable action;
+    /** The number of parties waiting in the current cycle. */
+    private int waiting;
+    private ThreadQueue waitQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
+}
@@ -7,6 +7,12 @@ import nachos.machine.*;
  * and multiple threads can be waiting to <i>listen</i>. But there should never
  * be a time when both a speaker and a listener are waiting, because the two
  * threads can be paired off at this point.
+ *
+ * <p>
+ * A communicator can instead be given a capacity, making it a bounded
+ * buffer: a speaker only waits while the buffer is full, and a listener only
+ * while it is empty. <tt>speakAll()</tt> and <tt>listen(int[])</tt> then move
+ * as many words as fit each time they hold the lock, rather than one.
  */
 public class Communicator {
     /**
@@ -16,6 +22,21 @@ public class Communicator {
     	isMoving = false;
     }
 
+    /**
+     * Allocate a new buffered communicator.
+     *
+     * @param	capacity	the number of words that can have been spoken
+     *				but not yet heard, or 0 for a synchronous
+     *				communicator.
+     */
+    public Communicator(int capacity) {
+	this();
+	Lib.assertTrue(capacity >= 0);
+
+	if (capacity > 0)
+	    buffer = new int[capacity];
+    }
+
     /**
      * Wait for a thread to listen through this communicator, and then transfer
      * <i>word</i> to the listener.
@@ -24,9 +45,23 @@ public class Communicator {
      * Does not return until this thread is paired up with a listening thread.
      * Exactly one listener should receive <i>word</i>.
      *
+     * <p>
+     * If this communicator is buffered, only waits until there is room in
+     * the buffer.
+     *
      * @param	word	the integer to transfer.
      */
     public void speak(int word) {  
+	if (buffer != null) {
+	    mutlock.acquire();
+	    while (count == buffer.length)
+		speaker.sleep();
+	    put(word);
+	    wakeUpTo(listener, 1);
+	    mutlock.release();
+	    return;
+	}
+
     	mutlock.acquire();
     	while(isMoving || listener.getThreadCount() == 0){
     		speaker.sleep();
@@ -44,6 +79,16 @@ public class Communicator {
      * @return	the integer transferred.
      */    
     public int listen(){ 
+	if (buffer != null) {
+	    mutlock.acquire();
+	    while (count == 0)
+		listener.sleep();
+	    int word = take();
+	    wakeUpTo(speaker, 1);
+	    mutlock.release();
+	    return word;
+	}
+
     int track;
     mutlock.acquire();
     while(!isMoving) {
@@ -61,10 +106,130 @@ public class Communicator {
     return track;
     }
     
+    /**
+     * Speak every word in <i>words</i>, in order. If this communicator is
+     * buffered, each time there is room the words that fit are added under a
+     * single acquisition of the lock, and only waits while the buffer is
+     * full. The words of one call stay in order, but may be interleaved with
+     * those of other speakers when the buffer fills.
+     *
+     * @param	words	the integers to transfer.
+     */
+    public void speakAll(int[] words) {
+	if (buffer == null) {
+	    for (int i=0; i<words.length; i++)
+		speak(words[i]);
+	    return;
+	}
+
+	mutlock.acquire();
+	int sent = 0;
+	while (sent < words.length) {
+	    while (count == buffer.length)
+		speaker.sleep();
+
+	    int n = Math.min(words.length - sent, buffer.length - count);
+	    for (int i=0; i<n; i++)
+		put(words[sent++]);
+	    wakeUpTo(listener, n);
+	}
+	mutlock.release();
+    }
+
+    /**
+     * Wait for at least one word to be spoken, and then take as many as are
+     * available, up to the length of <i>out</i>. A synchronous communicator
+     * takes exactly one.
+     *
+     * @param	out	the array to store the integers transferred in.
+     * @return	the number of integers transferred.
+     */
+    public int listen(int[] out) {
+	if (out.length == 0)
+	    return 0;
+
+	if (buffer == null) {
+	    out[0] = listen();
+	    return 1;
+	}
+
+	mutlock.acquire();
+	while (count == 0)
+	    listener.sleep();
+
+	int n = Math.min(out.length, count);
+	for (int i=0; i<n; i++)
+	    out[i] = take();
+	wakeUpTo(speaker, n);
+	mutlock.release();
+	return n;
+    }
+
+    private void put(int word) {
+	buffer[(head + count) % buffer.length] = word;
+	count++;
+    }
+
+    private int take() {
+	int word = buffer[head];
+	head = (head + 1) % buffer.length;
+	count--;
+	return word;
+    }
+
+    /**
+     * Wake at most <i>n</i> of the threads sleeping on <i>condition</i>.
+     */
+    private static void wakeUpTo(Condition2 condition, int n) {
+	for (int i=0; i<n && condition.getThreadCount() > 0; i++)
+	    condition.wake();
+    }
+
+    /**
+     * Tests that a synchronous and a buffered communicator each deliver
+     * every word exactly once, and that batches arrive in order.
+     */
+    public static void selfTest() {
+	final int words = 100;
+	final Semaphore done = new Semaphore(0);
+
+	int[] capacities = { 0, 1, 16 };
+	for (int c=0; c<capacities.length; c++) {
+	    final Communicator com = new Communicator(capacities[c]);
+
+	    new KThread(new Runnable() {
+		    public void run() {
+			int[] batch = new int[7];
+			for (int sent=0; sent<words; ) {
+			    int n = Math.min(batch.length, words - sent);
+			    int[] chunk = (n == batch.length) ? batch : new int[n];
+			    for (int i=0; i<n; i++)
+				chunk[i] = sent++;
+			    com.speakAll(chunk);
+			}
+			done.V();
+		    }
+		}).setName("batch speaker").fork();
+
+	    int[] out = new int[5];
+	    for (int heard=0; heard<words; ) {
+		int n = com.listen(out);
+		Lib.assertTrue(n >= 1 && n <= out.length);
+		for (int i=0; i<n; i++)
+		    Lib.assertTrue(out[i] == heard++);
+	    }
+	    done.P();
+	}
+    }
+
     private Lock mutlock= new Lock();
     private Condition2 speaker = new Condition2(mutlock);
     private Condition2 listener= new Condition2(mutlock);
     private int data;
     private boolean isMoving;
+
+    /** The words spoken but not yet heard, or <tt>null</tt> if synchronous. */
+    private int[] buffer = null;
+    private int head = 0, count = 0;
   
 }
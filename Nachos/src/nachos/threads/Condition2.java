@@ -38,13 +38,35 @@ public class Condition2 {
      */
     public void sleep() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());			
-	conditionLock.release();
 	boolean machstat = Machine.interrupt().disable();
+	conditionLock.release();
 	countVal++;
 	waitQueue.waitForAccess(KThread.currentThread());
-	conditionLock.acquire();
 	KThread.sleep();
 	Machine.interrupt().restore(machstat);
+	conditionLock.acquire();
+    }
+
+    /**
+     * Like <tt>sleep()</tt>, but wake up on its own if no other thread has
+     * woken this thread within <i>x</i> ticks. The thread reacquires the
+     * associated lock before returning either way.
+     *
+     * @param	x	the maximum number of clock ticks to sleep.
+     * @return	<tt>true</tt> if woken by <tt>wake()</tt> or
+     *		<tt>wakeAll()</tt>, or <tt>false</tt> if the sleep timed out.
+     */
+    public boolean sleepFor(long x) {
+	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+	boolean machstat = Machine.interrupt().disable();
+	conditionLock.release();
+	countVal++;
+	boolean woken = ThreadedKernel.alarm.waitOn(waitQueue, x);
+	if(!woken)
+		countVal--;											//wake() never saw us, so we take ourselves off the count
+	Machine.interrupt().restore(machstat);
+	conditionLock.acquire();
+	return woken;
     }
 
     /**
@@ -81,4 +103,31 @@ public class Condition2 {
     public int getThreadCount() {
     	return countVal;
     }
+
+    /**
+     * Test that a timed sleep gives up and takes itself off the count of
+     * sleeping threads, and that one woken in time says so.
+     */
+    public static void selfTest() {
+	final Lock lock = new Lock();
+	final Condition2 condition = new Condition2(lock);
+
+	lock.acquire();
+	Lib.assertTrue(!condition.sleepFor(1000));
+	Lib.assertTrue(lock.isHeldByCurrentThread());
+	Lib.assertTrue(condition.getThreadCount() == 0);
+
+	new KThread(new Runnable() {
+		public void run() {
+		    lock.acquire();
+		    Lib.assertTrue(condition.getThreadCount() == 1);
+		    condition.wake();
+		    lock.release();
+		}
+	    }).setName("condition waker").fork();
+
+	Lib.assertTrue(condition.sleepFor(1000000));
+	Lib.assertTrue(condition.getThreadCount() == 0);
+	lock.release();
+    }
 }
@@ -0,0 +1,102 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>CountDownLatch</tt> lets threads wait until a count reaches zero:
+ *
+ * <ul>
+ * <li><tt>countDown()</tt>: decrement the count. When it reaches zero, every
+ * waiting thread is woken up.
+ * <li><tt>await()</tt>: wait until the count is zero.
+ * </ul>
+ *
+ * <p>
+ * Once the count is zero the latch stays open, and <tt>await()</tt> returns
+ * at once.
+ */
+public class CountDownLatch {
+    /**
+     * Allocate a new latch.
+     *
+     * @param	count	the number of times <tt>countDown()</tt> must be
+     *			called before waiting threads are let through.
+     */
+    public CountDownLatch(int count) {
+	Lib.assertTrue(count >= 0);
+
+	this.count = count;
+    }
+
+    /**
+     * Atomically decrement the count, waking up every waiting thread if it
+     * reaches zero. Does nothing if the count is already zero.
+     */
+    public void countDown() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (count > 0 && --count == 0) {
+	    for (KThread thread; (thread = waitQueue.nextThread()) != null; )
+		thread.ready();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Wait until the count is zero.
+     */
+    public void await() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (count > 0) {
+	    waitQueue.waitForAccess(KThread.currentThread());
+	    KThread.sleep();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the current count. As with semaphores, it may have changed by
+     * the time the caller looks at it.
+     *
+     * @return	the current count.
+     */
+    public int getCount() {
+	return count;
+    }
+
+    /**
+     * Test that waiters are held until the count reaches zero.
+     */
+    public static void selfTest() {
+	final int workers = 5;
+	final CountDownLatch start = new CountDownLatch(1);
+	final CountDownLatch finish = new CountDownLatch(workers);
+	final int[] started = new int[1];
+
+	for (int i=0; i<workers; i++) {
+	    new KThread(new Runnable() {
+		    public void run() {
+			start.await();
+			started[0]++;
+			finish.countDown();
+		    }
+		}).setName("latch worker " + i).fork();
+	}
+
+	KThread.yield();
+	Lib.assertTrue(started[0] == 0);
+	start.countDown();
+	finish.await();
+	Lib.assertTrue(started[0] == workers && finish.getCount() == 0);
+
+	// an open latch does not block
+	start.await();
+    }
+
+    private int count;
+    private ThreadQueue waitQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
+}
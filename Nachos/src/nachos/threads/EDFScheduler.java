@@ -0,0 +1,359 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * An earliest-deadline-first scheduler.
+ *
+ * <p>
+ * A thread can be given a relative deadline and, optionally, a period with
+ * <tt>setDeadline()</tt>. Its current job must complete by its absolute
+ * deadline, which is its release time plus its relative deadline. The next
+ * thread to be dequeued is always the waiting thread with the earliest
+ * absolute deadline. Threads without a deadline run only when no thread
+ * with a deadline is waiting; among threads with the same deadline, the one
+ * that has been waiting longest is chosen.
+ *
+ * <p>
+ * Each queue is a binary min-heap ordered by absolute deadline, so choosing a
+ * thread takes O(log n) time.
+ *
+ * <p>
+ * A periodic thread ends each job by calling
+ * <tt>Alarm.waitForNextPeriod()</tt>. This records whether the job met its
+ * deadline in the machine statistics, advances the release time by one
+ * period and the deadline with it, and puts the thread to sleep until that
+ * release. A job that finishes after its deadline is counted as a miss;
+ * the next job is still released on the original schedule.
+ */
+public class EDFScheduler extends Scheduler {
+    /**
+     * Allocate a new earliest-deadline-first scheduler.
+     */
+    public EDFScheduler() {
+    }
+
+    /**
+     * Allocate a new deadline-ordered thread queue.
+     *
+     * @param	transferPriority	ignored. This scheduler does not
+     *					transfer deadlines.
+     * @return	a new deadline-ordered thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new DeadlineQueue();
+    }
+
+    /**
+     * Give the specified thread a deadline, starting with a job released
+     * now. Must be called with interrupts disabled.
+     *
+     * @param	thread	the thread to give a deadline.
+     * @param	relativeDeadline	the ticks within which each job must
+     *					complete after its release.
+     * @param	period	the ticks between the releases of consecutive jobs,
+     *			or 0 if the thread only has one job.
+     */
+    public void setDeadline(KThread thread, long relativeDeadline,
+			    long period) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	Lib.assertTrue(relativeDeadline > 0 && period >= 0);
+
+	ThreadState state = getThreadState(thread);
+	state.relativeDeadline = relativeDeadline;
+	state.period = period;
+	state.release = Machine.timer().getTime();
+	state.setDeadline(state.release + relativeDeadline);
+    }
+
+    /**
+     * Remove the specified thread's deadline. Must be called with interrupts
+     * disabled.
+     *
+     * @param	thread	the thread whose deadline to remove.
+     */
+    public void clearDeadline(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(thread);
+	state.relativeDeadline = 0;
+	state.period = 0;
+	state.setDeadline(noDeadline);
+    }
+
+    /**
+     * Return the absolute deadline of the specified thread's current job.
+     * Must be called with interrupts disabled.
+     *
+     * @param	thread	the thread whose deadline to return.
+     * @return	the absolute deadline, or <tt>Long.MAX_VALUE</tt> if the
+     *		thread has none.
+     */
+    public long getDeadline(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).deadline;
+    }
+
+    /**
+     * Return the number of jobs that have completed after their deadline.
+     *
+     * @return	the number of deadline misses so far.
+     */
+    public int getDeadlineMisses() {
+	return misses;
+    }
+
+    public long finishJob(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(thread);
+	if (state.deadline == noDeadline)
+	    return -1;
+
+	long time = Machine.timer().getTime();
+	boolean missed = (time > state.deadline);
+	Machine.recordDeadline(missed);
+	if (missed)
+	    misses++;
+
+	if (state.period == 0) {
+	    clearDeadline(thread);
+	    return time;
+	}
+
+	state.release += state.period;
+	state.setDeadline(state.release + state.relativeDeadline);
+	return state.release;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Runs two periodic threads with a total utilization of about half next
+     * to a thread that never blocks, and checks that no deadline is missed.
+     */
+    public void selfTest() {
+	final Semaphore done = new Semaphore(0);
+	final boolean[] stop = new boolean[1];
+	final int jobs = 5;
+
+	final long[][] tasks = { { 2000, 40 }, { 3000, 50 } };
+	KThread[] periodic = new KThread[tasks.length];
+	for (int i=0; i<tasks.length; i++) {
+	    final long[] task = tasks[i];
+	    periodic[i] = new KThread(new Runnable() {
+		    public void run() {
+			for (int job=0; job<jobs; job++) {
+			    // each enable advances the clock by a kernel tick
+			    for (int j=0; j<task[1]; j++) {
+				Machine.interrupt().disable();
+				Machine.interrupt().enable();
+			    }
+			    ThreadedKernel.alarm.waitForNextPeriod();
+			}
+			done.V();
+		    }
+		}).setName("periodic " + i);
+	}
+
+	KThread hog = new KThread(new Runnable() {
+		public void run() {
+		    while (!stop[0]) {
+			Machine.interrupt().disable();
+			Machine.interrupt().enable();
+		    }
+		    done.V();
+		}
+	    }).setName("hog");
+
+	int missesBefore = misses;
+
+	boolean intStatus = Machine.interrupt().disable();
+	for (int i=0; i<tasks.length; i++) {
+	    setDeadline(periodic[i], tasks[i][0], tasks[i][0]);
+	    periodic[i].fork();
+	}
+	hog.fork();
+	Machine.interrupt().restore(intStatus);
+
+	for (int i=0; i<tasks.length; i++)
+	    done.P();
+	stop[0] = true;
+	done.P();
+
+	Lib.assertTrue(misses == missesBefore);
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> ordered by absolute deadline.
+     */
+    protected class DeadlineQueue extends ThreadQueue {
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    Lib.assertTrue(state.queue == null);
+
+	    if (size == heap.length) {
+		ThreadState[] larger = new ThreadState[size*2];
+		System.arraycopy(heap, 0, larger, 0, size);
+		heap = larger;
+	    }
+
+	    state.queue = this;
+	    state.arrival = arrivals++;
+	    heap[size] = state;
+	    state.index = size++;
+	    siftUp(state.index);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (size == 0)
+		return null;
+
+	    ThreadState first = heap[0];
+	    unlink(first);
+	    return first.thread;
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (state.queue != this)
+		return false;
+
+	    unlink(state);
+	    return true;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	/**
+	 * Restore the heap order after the specified waiter's deadline
+	 * changed.
+	 */
+	void reposition(ThreadState state) {
+	    siftUp(state.index);
+	    siftDown(state.index);
+	}
+
+	private void unlink(ThreadState state) {
+	    int i = state.index;
+	    ThreadState last = heap[--size];
+	    heap[size] = null;
+	    if (last != state) {
+		heap[i] = last;
+		last.index = i;
+		reposition(last);
+	    }
+	    state.queue = null;
+	}
+
+	private boolean before(ThreadState a, ThreadState b) {
+	    return (a.deadline < b.deadline ||
+		    (a.deadline == b.deadline && a.arrival < b.arrival));
+	}
+
+	private void siftUp(int i) {
+	    ThreadState state = heap[i];
+	    while (i > 0 && before(state, heap[(i-1)/2])) {
+		heap[i] = heap[(i-1)/2];
+		heap[i].index = i;
+		i = (i-1)/2;
+	    }
+	    heap[i] = state;
+	    state.index = i;
+	}
+
+	private void siftDown(int i) {
+	    ThreadState state = heap[i];
+	    while (2*i+1 < size) {
+		int child = 2*i+1;
+		if (child+1 < size && before(heap[child+1], heap[child]))
+		    child++;
+		if (!before(heap[child], state))
+		    break;
+		heap[i] = heap[child];
+		heap[i].index = i;
+		i = child;
+	    }
+	    heap[i] = state;
+	    state.index = i;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<size; i++)
+		System.out.print(heap[i].thread + "(" + heap[i].deadline + ") ");
+	}
+
+	private ThreadState[] heap = new ThreadState[8];
+	private int size = 0;
+	private long arrivals = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its deadline, period and current
+     * job, and where it is waiting.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	void setDeadline(long deadline) {
+	    this.deadline = deadline;
+	    if (queue != null)
+		queue.reposition(this);
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The ticks each job has after its release, or 0 if none. */
+	protected long relativeDeadline = 0;
+	/** The ticks between job releases, or 0 if not periodic. */
+	protected long period = 0;
+	/** When the current job was released. */
+	protected long release = 0;
+	/** The absolute deadline of the current job. */
+	protected long deadline = noDeadline;
+
+	/** The queue this thread is waiting on, or <tt>null</tt>. */
+	protected DeadlineQueue queue = null;
+	/** This thread's index in <tt>queue</tt>'s heap. */
+	protected int index;
+	/** When this thread started waiting, for breaking ties. */
+	protected long arrival;
+    }
+
+    /** The number of jobs that completed after their deadline. */
+    private int misses = 0;
+
+    private static final long noDeadline = Long.MAX_VALUE;
+}
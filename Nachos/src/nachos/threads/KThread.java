@@ -49,7 +49,7 @@ public class KThread {
 	}	    
 	else {
 		joinQueue= ThreadedKernel.scheduler.newThreadQueue(false);		//setting our condition variables that we just worked on
-	    readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+	    readyQueue = ThreadedKernel.scheduler.newReadyQueue();
 	    readyQueue.acquire(this);	 									//getting that thread ready 
 	    currentThread = this;
 	    tcb = TCB.currentTCB();
@@ -264,8 +264,10 @@ public class KThread {
 	Lib.assertTrue(status != statusReady);
 	
 	status = statusReady;
-	if (this != idleThread)
+	if (this != idleThread) {
 	    readyQueue.waitForAccess(this);
+	    numReady++;
+	}
 	
 	Machine.autoGrader().readyThread(this);
     }
@@ -303,12 +305,23 @@ public class KThread {
      *
      * <p>
      * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
+     *
+     * <p>
+     * While nothing else is ready, each pass through the idle loop would only
+     * advance the clock by one kernel tick, so the idle thread instead asks
+     * the interrupt controller to skip straight to the next pending interrupt.
      */
     private static void createIdleThread() {
 	Lib.assertTrue(idleThread == null);
 	
 	idleThread = new KThread(new Runnable() {
-	    public void run() { while (true) yield(); }
+	    public void run() {
+		while (true) {
+		    if (numReady == 0)
+			Machine.interrupt().idle();
+		    KThread.yield();
+		}
+	    }
 	});
 	idleThread.setName("idle");
 
@@ -325,6 +338,8 @@ public class KThread {
 	KThread nextThread = readyQueue.nextThread();
 	if (nextThread == null)
 	    nextThread = idleThread;
+	else
+	    numReady--;
 
 	nextThread.run();
     }
@@ -432,6 +447,14 @@ public class KThread {
      */
     public Object schedulingState = null;
 
+    /**
+     * How many ticks late <tt>Alarm</tt> may wake this thread, so that it can
+     * be woken together with others.
+     *
+     * @see	nachos.threads.Alarm#setTimerSlack
+     */
+    long timerSlack = 0;
+
     private static final int statusNew = 0;
     private static final int statusReady = 1;
     private static final int statusRunning = 2;
@@ -457,6 +480,8 @@ public class KThread {
     /** Number of times the KThread constructor was called. */
     private static int numCreated = 0;
 
+    /** The number of threads, other than the idle thread, that are ready. */
+    private static int numReady = 0;
     private static ThreadQueue readyQueue = null;
     private static ThreadQueue joinQueue = null;
     private static KThread currentThread = null;
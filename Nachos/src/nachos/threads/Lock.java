@@ -18,12 +18,40 @@ import nachos.machine.*;
  * Also, only the thread that acquired a lock may release it. As with
  * semaphores, the API does not allow you to read the lock state (because the
  * value could change immediately after you read it).
+ *
+ * <p>
+ * A lock can be made <i>adaptive</i>: a thread that finds it busy first
+ * yields up to a fixed number of times, in case the holder is about to
+ * release it, and only goes to sleep on the lock if it is still busy. This
+ * saves sleeping and being woken up when critical sections are short. The
+ * number of yields comes from <tt>Lock.spinYields</tt> unless it is given to
+ * the constructor; by default it is 0, and a thread sleeps at once.
+ *
+ * <p>
+ * Every lock counts its acquisitions, how many of them found the lock busy,
+ * and the ticks spent waiting for it, to show which locks are contended.
  */
 public class Lock {
     /**
      * Allocate a new lock. The lock will initially be <i>free</i>.
      */
     public Lock() {
+	if (defaultSpinYields < 0)
+	    defaultSpinYields = Config.getInteger("Lock.spinYields", 0);
+
+	spinYields = defaultSpinYields;
+    }
+
+    /**
+     * Allocate a new adaptive lock. The lock will initially be <i>free</i>.
+     *
+     * @param	spinYields	how many times a thread that finds the lock
+     *				busy yields before it sleeps.
+     */
+    public Lock(int spinYields) {
+	Lib.assertTrue(spinYields >= 0);
+
+	this.spinYields = spinYields;
     }
 
     /**
@@ -36,9 +64,24 @@ public class Lock {
 	boolean intStatus = Machine.interrupt().disable();
 	KThread thread = KThread.currentThread();
 
+	acquires++;
 	if (lockHolder != null) {
-	    waitQueue.waitForAccess(thread);
-	    KThread.sleep();
+	    long start = Machine.timer().getTime();
+	    contendedAcquires++;
+
+	    for (int i=0; i<spinYields && lockHolder != null; i++)
+		KThread.yield();
+
+	    if (lockHolder != null) {
+		waitQueue.waitForAccess(thread);
+		KThread.sleep();
+	    }
+	    else {
+		waitQueue.acquire(thread);
+		lockHolder = thread;
+	    }
+
+	    waitTicks += Machine.timer().getTime() - start;
 	}
 	else {
 	    waitQueue.acquire(thread);
@@ -50,6 +93,45 @@ public class Lock {
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Atomically acquire this lock if it becomes <i>free</i> within <i>x</i>
+     * ticks. The current thread must not already hold this lock. While it
+     * waits, it donates priority to the holder as in <tt>acquire()</tt>; the
+     * donation is withdrawn if it gives up.
+     *
+     * @param	x	the maximum number of clock ticks to wait.
+     * @return	<tt>true</tt> if the lock was acquired.
+     */
+    public boolean tryAcquire(long x) {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	boolean contended = (lockHolder != null);
+	boolean acquired = true;
+	if (contended) {
+	    long start = Machine.timer().getTime();
+	    acquired = (x > 0 && ThreadedKernel.alarm.waitOn(waitQueue, x));
+	    waitTicks += Machine.timer().getTime() - start;
+	}
+	else {
+	    waitQueue.acquire(thread);
+	    lockHolder = thread;
+	}
+
+	if (acquired) {
+	    acquires++;
+	    if (contended)
+		contendedAcquires++;
+	}
+
+	Lib.assertTrue(acquired == (lockHolder == thread));
+
+	Machine.interrupt().restore(intStatus);
+	return acquired;
+    }
+
     /**
      * Atomically release this lock, allowing other threads to acquire it.
      */
@@ -73,7 +155,132 @@ public class Lock {
 	return (lockHolder == KThread.currentThread());
     }
 
+    /**
+     * Return the number of times this lock has been acquired.
+     *
+     * @return	the number of acquisitions.
+     */
+    public long getAcquires() {
+	return acquires;
+    }
+
+    /**
+     * Return the number of times this lock has been acquired by a thread
+     * that found it busy.
+     *
+     * @return	the number of contended acquisitions.
+     */
+    public long getContendedAcquires() {
+	return contendedAcquires;
+    }
+
+    /**
+     * Return the total ticks threads have spent waiting for this lock.
+     *
+     * @return	the ticks spent waiting.
+     */
+    public long getWaitTicks() {
+	return waitTicks;
+    }
+
+    /**
+     * Test that an adaptive lock can be taken over from a holder that
+     * yields, that the statistics count the acquisitions, and that a timed
+     * acquire gives up, or succeeds, as it should.
+     */
+    public static void selfTest() {
+	// enough yields that even a lottery gives the holder a turn
+	final Lock lock = new Lock(32);
+	final Semaphore held = new Semaphore(0), done = new Semaphore(0);
+	final boolean[] spun = new boolean[1];
+
+	new KThread(new Runnable() {
+		public void run() {
+		    lock.acquire();
+		    held.V();
+		    while (lock.getContendedAcquires() == 0)
+			KThread.yield();
+		    // nobody is woken if the waiter is still yielding
+		    boolean intStatus = Machine.interrupt().disable();
+		    lock.release();
+		    spun[0] = (lock.lockHolder == null);
+		    Machine.interrupt().restore(intStatus);
+		    done.V();
+		}
+	    }).setName("lock holder").fork();
+
+	held.P();
+	lock.acquire();
+	lock.release();
+	done.P();
+
+	Lib.assertTrue(lock.getAcquires() == 2);
+	Lib.assertTrue(lock.getContendedAcquires() == 1);
+	Lib.assertTrue(spun[0]);
+
+	/* A timed acquire gives up on a lock that stays held. Under a priority
+	 * scheduler, a priority 6 waiter donates to a priority 1 holder, and
+	 * withdraws the donation when it gives up.
+	 */
+	final Lock timed = new Lock();
+	final boolean[] acquired = new boolean[3];
+	boolean donates =
+	    (ThreadedKernel.scheduler.getClass() == PriorityScheduler.class);
+
+	Lib.assertTrue(timed.tryAcquire(0));
+	KThread waiter = new KThread(new Runnable() {
+		public void run() {
+		    acquired[0] = timed.tryAcquire(0);
+		    acquired[1] = timed.tryAcquire(1000);
+		    done.V();
+		}
+	    }).setName("timed waiter");
+
+	boolean intStatus = Machine.interrupt().disable();
+	if (donates) {
+	    ThreadedKernel.scheduler.setPriority(1);
+	    ThreadedKernel.scheduler.setPriority(waiter, 6);
+	}
+	waiter.fork();
+	Machine.interrupt().restore(intStatus);
+
+	KThread.yield();
+	intStatus = Machine.interrupt().disable();
+	if (donates)
+	    Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority() == 6);
+	Machine.interrupt().restore(intStatus);
+
+	done.P();
+	intStatus = Machine.interrupt().disable();
+	if (donates)
+	    Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority() == 1);
+	Machine.interrupt().restore(intStatus);
+	Lib.assertTrue(!acquired[0] && !acquired[1]);
+
+	// a timed acquire takes the lock if it is released in time
+	new KThread(new Runnable() {
+		public void run() {
+		    acquired[2] = timed.tryAcquire(1000000);
+		    if (acquired[2])
+			timed.release();
+		    done.V();
+		}
+	    }).setName("timed acquirer").fork();
+
+	KThread.yield();
+	timed.release();
+	done.P();
+	Lib.assertTrue(acquired[2]);
+    }
+
     private KThread lockHolder = null;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(true);
+
+    /** How many times to yield to a holder before sleeping. */
+    private int spinYields;
+    private long acquires = 0, contendedAcquires = 0, waitTicks = 0;
+
+    /** <tt>Lock.spinYields</tt>, or -1 until it has been read. */
+    private static int defaultSpinYields = -1;
 }
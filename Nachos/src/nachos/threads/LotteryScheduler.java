@@ -2,9 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 
 /**
  * A scheduler that chooses threads using a lottery.
@@ -25,6 +24,12 @@ import java.util.Iterator;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking
  * the maximum).
+ *
+ * <p>
+ * Each queue keeps its waiters' ticket counts in a Fenwick tree, so holding a
+ * lottery and changing a waiter's tickets both take O(log n) time, however
+ * many threads are waiting. Ticket sums are kept as <tt>long</tt>s, and
+ * reported as effective priorities clamped to <tt>priorityMaximum</tt>.
  */
 public class LotteryScheduler extends PriorityScheduler {
     /**
@@ -32,7 +37,7 @@ public class LotteryScheduler extends PriorityScheduler {
      */
     public LotteryScheduler() {
     }
-    
+
     /**
      * Allocate a new lottery thread queue.
      *
@@ -42,7 +47,468 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	// implement me
-	return null;
+	return new LotteryQueue(transferPriority);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		   priority <= priorityMaximum);
+
+	getThreadState(thread).setPriority(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority < priorityMaximum);
+	if (changed)
+	    setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority > priorityMinimum);
+	if (changed)
+	    setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets a thread can have.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected LotteryThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new LotteryThreadState(thread);
+
+	return (LotteryThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Tests ticket transfer through a lock, and checks that every thread in a
+     * lottery holds exactly as many of the tickets as it should. No lottery is
+     * actually held, so the test does not use the random number generator. If
+     * <tt>LotteryScheduler.benchmark</tt> is set, <tt>benchmark()</tt> is run
+     * as well.
+     */
+    public void selfTest() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	/* Ticket transfer: the holder of a lock gets the tickets of every
+	 * waiter, and of everything waiting on them in turn.
+	 */
+	ThreadQueue outer = newThreadQueue(true);
+	ThreadQueue inner = newThreadQueue(true);
+	KThread holder = new KThread(), middle = new KThread();
+	KThread waiter1 = new KThread(), waiter2 = new KThread();
+	setPriority(holder, 2);
+	setPriority(middle, 3);
+	setPriority(waiter1, 5);
+	setPriority(waiter2, 7);
+
+	outer.acquire(holder);
+	inner.acquire(middle);
+	outer.waitForAccess(middle);
+	inner.waitForAccess(waiter1);
+	inner.waitForAccess(waiter2);
+	Lib.assertTrue(getEffectivePriority(middle) == 3+5+7);
+	Lib.assertTrue(getEffectivePriority(holder) == 2+3+5+7);
+
+	setPriority(waiter1, 1);
+	Lib.assertTrue(getEffectivePriority(holder) == 2+3+1+7);
+
+	// hand the lock over the way nextThread() would
+	Lib.assertTrue(outer.remove(middle));
+	outer.acquire(middle);
+	Lib.assertTrue(getEffectivePriority(holder) == 2);
+	Lib.assertTrue(getEffectivePriority(middle) == 3+1+7);
+
+	Machine.interrupt().restore(intStatus);
+
+	/* Proportional share: slot i holds i+1 tickets, so it must own
+	 * exactly i+1 consecutive ticket numbers, also after the tree grows
+	 * and after a slot's tickets change.
+	 */
+	TicketTree tree = new TicketTree(4);
+	for (int i=0; i<4; i++)
+	    tree.add(i, i+1);
+	selfTestCheckTickets(tree, new long[] { 1, 2, 3, 4 });
+
+	tree = tree.resize(8);
+	tree.add(5, 6);
+	tree.add(1, -2);
+	selfTestCheckTickets(tree, new long[] { 1, 0, 3, 4, 0, 6, 0, 0 });
+
+	if (Config.getBoolean("LotteryScheduler.benchmark", false))
+	    benchmark();
+    }
+
+    private static void selfTestCheckTickets(TicketTree tree, long[] counts) {
+	long ticket = 0;
+	for (int slot=0; slot<counts.length; slot++) {
+	    Lib.assertTrue(tree.get(slot) == counts[slot]);
+	    for (long i=0; i<counts[slot]; i++)
+		Lib.assertTrue(tree.find(ticket++) == slot);
+	}
+	Lib.assertTrue(tree.total() == ticket);
+    }
+
+    /**
+     * Holds <tt>LotteryScheduler.testDraws</tt> lotteries on a queue of
+     * <tt>LotteryScheduler.testWidth</tt> threads, checks that they are won
+     * in proportion to tickets, and prints how long they took. This draws
+     * on <tt>Lib.random()</tt>, so it changes the random numbers seen by the
+     * rest of the run.
+     */
+    public void benchmark() {
+	final int width = Config.getInteger("LotteryScheduler.testWidth", 1000);
+	final int draws = Config.getInteger("LotteryScheduler.testDraws",
+					    100000);
+	Lib.assertTrue(width >= 2 && draws > 0);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	/* Thread i holds i+1 tickets, so the first half of the threads should
+	 * win about a quarter of the draws.
+	 */
+	ThreadQueue queue = newThreadQueue(false);
+	KThread[] threads = new KThread[width];
+	for (int i=0; i<width; i++) {
+	    threads[i] = new KThread();
+	    setPriority(threads[i], i+1);
+	    queue.waitForAccess(threads[i]);
+	}
+
+	int lowerWins = 0;
+	long start = System.currentTimeMillis();
+	for (int i=0; i<draws; i++) {
+	    KThread winner = queue.nextThread();
+	    if (getPriority(winner) <= width/2)
+		lowerWins++;
+	    queue.waitForAccess(winner);
+	}
+	long elapsed = System.currentTimeMillis() - start;
+
+	long half = width/2;
+	double expected = (double) half*(half+1) / ((double) width*(width+1));
+	double share = (double) lowerWins / draws;
+	Lib.assertTrue(Math.abs(share - expected) < 0.05);
+
+	Machine.interrupt().restore(intStatus);
+
+	System.out.println("LotteryScheduler: " + draws + " draws among " +
+			   width + " threads in " + elapsed + " ms");
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that chooses threads by lottery.
+     */
+    protected class LotteryQueue extends ThreadQueue {
+	LotteryQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    LotteryThreadState state = getThreadState(thread);
+	    Lib.assertTrue(!slots.containsKey(state));
+
+	    if (free == 0 && size == owners.length)
+		grow();
+
+	    int slot = (free == 0) ? size : freeSlots[--free];
+	    if (slot == size)
+		size++;
+	    owners[slot] = state;
+	    slots.put(state, slot);
+	    tickets.add(slot, state.getEffectiveTickets());
+
+	    state.waitForAccess(this);
+	    updateDonation();
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    LotteryThreadState state = getThreadState(thread);
+	    Lib.assertTrue(!slots.containsKey(state));
+	    state.acquire(this);
+
+	    if (holder != null)
+		holder.receive(-donation);
+	    holder = state;
+	    holder.receive(donation);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    long total = tickets.total();
+	    if (total == 0)
+		return null;
+
+	    long draw = (long) (Lib.random() * total);
+	    LotteryThreadState winner = owners[tickets.find(Math.min(draw, total-1))];
+
+	    leave(winner);
+	    acquire(winner.thread);
+	    return winner.thread;
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    LotteryThreadState state = getThreadState(thread);
+	    if (!slots.containsKey(state))
+		return false;
+
+	    state.acquire(this);
+	    leave(state);
+	    return true;
+	}
+
+	/**
+	 * Take the specified thread out of the lottery.
+	 */
+	private void leave(LotteryThreadState state) {
+	    int slot = slots.remove(state);
+	    tickets.add(slot, -tickets.get(slot));
+	    owners[slot] = null;
+	    freeSlots[free++] = slot;
+	    updateDonation();
+	}
+
+	/**
+	 * Called when the effective tickets of a waiting thread change.
+	 */
+	void updateTickets(LotteryThreadState state) {
+	    int slot = slots.get(state);
+	    tickets.add(slot, state.getEffectiveTickets() - tickets.get(slot));
+	    updateDonation();
+	}
+
+	/**
+	 * Pass any change in the waiters' total tickets on to the holder.
+	 */
+	private void updateDonation() {
+	    if (!transferPriority)
+		return;
+
+	    long total = tickets.total();
+	    if (total == donation)
+		return;
+
+	    long change = total - donation;
+	    donation = total;
+	    if (holder != null)
+		holder.receive(change);
+	}
+
+	private void grow() {
+	    int capacity = owners.length * 2;
+
+	    LotteryThreadState[] newOwners = new LotteryThreadState[capacity];
+	    System.arraycopy(owners, 0, newOwners, 0, size);
+	    owners = newOwners;
+
+	    int[] newFree = new int[capacity];
+	    System.arraycopy(freeSlots, 0, newFree, 0, free);
+	    freeSlots = newFree;
+
+	    tickets = tickets.resize(capacity);
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<size; i++) {
+		if (owners[i] != null)
+		    System.out.print(owners[i].thread + "(" +
+				     tickets.get(i) + ") ");
+	    }
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+
+	/** The thread that has access, or <tt>null</tt>. */
+	private LotteryThreadState holder = null;
+	/** The tickets currently given to <tt>holder</tt>. */
+	private long donation = 0;
+
+	/** The waiting threads, each in its own slot of the tree. */
+	private LotteryThreadState[] owners = new LotteryThreadState[8];
+	private HashMap<LotteryThreadState, Integer> slots =
+	    new HashMap<LotteryThreadState, Integer>();
+	/** Slots below <tt>size</tt> that are not in use. */
+	private int[] freeSlots = new int[8];
+	private int free = 0;
+	private int size = 0;
+	private TicketTree tickets = new TicketTree(8);
+    }
+
+    /**
+     * A Fenwick (binary indexed) tree of ticket counts. Adding to a slot, and
+     * finding the slot that holds a given ticket, both take O(log n) time.
+     */
+    protected static class TicketTree {
+	TicketTree(int capacity) {
+	    Lib.assertTrue(Integer.bitCount(capacity) == 1);
+
+	    tree = new long[capacity+1];
+	    values = new long[capacity];
+	}
+
+	long get(int slot) {
+	    return values[slot];
+	}
+
+	long total() {
+	    return total;
+	}
+
+	void add(int slot, long amount) {
+	    values[slot] += amount;
+	    total += amount;
+	    for (int i=slot+1; i<tree.length; i+=(i & -i))
+		tree[i] += amount;
+	}
+
+	/**
+	 * Return the slot holding the specified ticket, where tickets are
+	 * numbered from 0 through <tt>total()-1</tt> in slot order.
+	 */
+	int find(long ticket) {
+	    int position = 0;
+	    for (int step=Integer.highestOneBit(tree.length-1); step>0;
+		 step>>=1) {
+		if (tree[position+step] <= ticket) {
+		    position += step;
+		    ticket -= tree[position];
+		}
+	    }
+	    return position;
+	}
+
+	/**
+	 * Return a copy of this tree with a larger capacity.
+	 */
+	TicketTree resize(int capacity) {
+	    TicketTree larger = new TicketTree(capacity);
+	    for (int i=0; i<values.length; i++) {
+		if (values[i] != 0)
+		    larger.add(i, values[i]);
+	    }
+	    return larger;
+	}
+
+	private long[] tree;
+	private long[] values;
+	private long total = 0;
+    }
+
+    /**
+     * The scheduling state of a thread under a lottery scheduler. The
+     * thread's priority is its own ticket count; its effective tickets add
+     * the tickets transferred from every queue it holds.
+     */
+    protected class LotteryThreadState extends ThreadState {
+	/**
+	 * Allocate a new <tt>LotteryThreadState</tt> object and associate it
+	 * with the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public LotteryThreadState(KThread thread) {
+	    this.thread = thread;
+	    this.priority = priorityDefault;
+	}
+
+	/**
+	 * Return the effective tickets of the associated thread, clamped to
+	 * <tt>priorityMaximum</tt>.
+	 *
+	 * @return	the effective tickets of the associated thread.
+	 */
+	public int getEffectivePriority() {
+	    return (int) Math.min(getEffectiveTickets(), priorityMaximum);
+	}
+
+	long getEffectiveTickets() {
+	    return priority + received;
+	}
+
+	public void setPriority(int priority) {
+	    if (this.priority == priority)
+		return;
+
+	    this.priority = priority;
+	    changed();
+	}
+
+	/**
+	 * Add to the tickets transferred to this thread.
+	 */
+	void receive(long change) {
+	    if (change == 0)
+		return;
+
+	    received += change;
+	    changed();
+	}
+
+	/**
+	 * Pass a change in effective tickets on to every queue this thread
+	 * waits on; each of those passes it to its holder in turn.
+	 */
+	private void changed() {
+	    for (LotteryQueue queue : waitingOn)
+		queue.updateTickets(this);
+	}
+
+	void waitForAccess(LotteryQueue waitQueue) {
+	    waitingOn.add(waitQueue);
+	}
+
+	void acquire(LotteryQueue waitQueue) {
+	    waitingOn.remove(waitQueue);
+	}
+
+	/** Tickets transferred from the queues this thread holds. */
+	protected long received = 0;
+	protected HashSet<LotteryQueue> waitingOn = new HashSet<LotteryQueue>();
     }
 }
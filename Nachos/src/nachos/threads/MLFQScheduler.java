@@ -0,0 +1,398 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A multilevel feedback queue scheduler.
+ *
+ * <p>
+ * Threads are kept in one FIFO list per level, and the next thread to be
+ * dequeued is always the first thread of the highest non-empty level, so
+ * every queue operation takes constant time. All threads start at the top
+ * level.
+ *
+ * <p>
+ * The scheduler learns how threads behave from the ready queue. When the
+ * running thread yields, which happens on every timer interrupt, the time it
+ * has run since it was last dispatched is added to its usage at its current
+ * level; a thread whose usage reaches the allotment for its level is moved
+ * down a level. A thread that blocked (in a <tt>Lock</tt>,
+ * <tt>Condition2</tt>, <tt>Semaphore</tt>, <tt>Alarm</tt>, or anything else)
+ * is moved up a level when it is readied again. CPU-bound threads therefore
+ * sink, and threads that mostly wait stay near the top and get short
+ * latencies.
+ *
+ * <p>
+ * To keep the lower levels from starving, every thread is periodically
+ * moved back to the top level. Rather than visiting every thread, this
+ * starts a new <i>epoch</i>: a thread whose level was set in an earlier epoch
+ * is at the top, and each queue splices its lower lists onto its top list the
+ * next time it is used.
+ *
+ * <p>
+ * The number of levels, the allotment of the top level (which doubles at each
+ * lower level) and the interval between boosts are set by
+ * <tt>MLFQScheduler.levels</tt>, <tt>MLFQScheduler.quantum</tt> and
+ * <tt>MLFQScheduler.boostInterval</tt>. Priorities are the levels, numbered
+ * so that the top level has the highest priority. No priority is
+ * transferred; the periodic boost is what eventually runs a low-level lock
+ * holder.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new multilevel feedback queue scheduler.
+     */
+    public MLFQScheduler() {
+	levels = Config.getInteger("MLFQScheduler.levels", 4);
+	quantum = Config.getInteger("MLFQScheduler.quantum", Stats.TimerTicks);
+	boostInterval = Config.getInteger("MLFQScheduler.boostInterval",
+					  100*Stats.TimerTicks);
+
+	Lib.assertTrue(levels >= 1 && levels <= 31);
+	Lib.assertTrue(quantum > 0 && boostInterval > 0);
+
+	nextBoost = boostInterval;
+    }
+
+    /**
+     * Allocate a new multilevel feedback thread queue.
+     *
+     * @param	transferPriority	ignored. This scheduler does not
+     *					transfer priority.
+     * @return	a new multilevel feedback thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FeedbackQueue(false);
+    }
+
+    /**
+     * Allocate the ready queue, the only feedback queue that tracks how long
+     * threads run and moves them between levels.
+     *
+     * @return	a new multilevel feedback thread queue for the processor.
+     */
+    public ThreadQueue newReadyQueue() {
+	return new FeedbackQueue(true);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return levels-1 - getThreadState(thread).getLevel();
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= 0 && priority < levels);
+
+	getThreadState(thread).setLevel(levels-1 - priority);
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Start a new epoch if the boost interval has passed.
+     */
+    private void checkBoost(long time) {
+	if (time >= nextBoost) {
+	    epoch++;
+	    nextBoost = time + boostInterval;
+	}
+    }
+
+    /**
+     * Tests that a CPU-bound thread sinks below a thread that keeps
+     * blocking on the alarm.
+     */
+    public void selfTest() {
+	final Semaphore done = new Semaphore(0);
+	final int[] finalPriority = new int[2];
+
+	KThread cpuBound = new KThread(new Runnable() {
+		public void run() {
+		    // every restore() advances the clock, so this burns quanta
+		    for (int i=0; i<2000; i++) {
+			Machine.interrupt().disable();
+			Machine.interrupt().enable();
+		    }
+		    Machine.interrupt().disable();
+		    finalPriority[0] = getPriority(KThread.currentThread());
+		    Machine.interrupt().enable();
+		    done.V();
+		}
+	    }).setName("cpu-bound");
+
+	KThread interactive = new KThread(new Runnable() {
+		public void run() {
+		    for (int i=0; i<20; i++)
+			ThreadedKernel.alarm.waitUntil(10);
+		    Machine.interrupt().disable();
+		    finalPriority[1] = getPriority(KThread.currentThread());
+		    Machine.interrupt().enable();
+		    done.V();
+		}
+	    }).setName("interactive");
+
+	cpuBound.fork();
+	interactive.fork();
+	done.P();
+	done.P();
+
+	Lib.assertTrue(levels == 1 || finalPriority[0] < finalPriority[1]);
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that keeps one FIFO list per level.
+     */
+    protected class FeedbackQueue extends ThreadQueue {
+	FeedbackQueue(boolean isReadyQueue) {
+	    this.isReadyQueue = isReadyQueue;
+	    queueEpoch = epoch;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    long time = Machine.timer().getTime();
+
+	    /* On the ready queue, the current thread waiting here is yielding,
+	     * and any other thread has just been woken up.
+	     */
+	    if (isReadyQueue) {
+		if (thread == KThread.currentThread())
+		    state.ran(time - state.dispatched);
+		else
+		    state.woken();
+	    }
+
+	    catchUp();
+	    append(state, state.getLevel());
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    long time = Machine.timer().getTime();
+	    if (isReadyQueue)
+		checkBoost(time);
+
+	    catchUp();
+	    if (nonEmpty == 0)
+		return null;
+
+	    ThreadState state = heads[Integer.numberOfTrailingZeros(nonEmpty)];
+	    unlink(state);
+
+	    if (isReadyQueue)
+		state.dispatched = time;
+
+	    return state.thread;
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (state.queue != this)
+		return false;
+
+	    catchUp();
+	    unlink(state);
+	    return true;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    getThreadState(thread).dispatched = Machine.timer().getTime();
+	}
+
+	/**
+	 * Nothing to do, since no priority is transferred.
+	 */
+	public void handOff(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	/**
+	 * If a boost happened since this queue was last used, splice every
+	 * lower level onto the top level, keeping their order.
+	 */
+	private void catchUp() {
+	    if (queueEpoch == epoch)
+		return;
+	    queueEpoch = epoch;
+
+	    for (int level=1; level<levels; level++) {
+		if (heads[level] == null)
+		    continue;
+
+		if (heads[0] == null)
+		    heads[0] = heads[level];
+		else
+		    tails[0].next = heads[level];
+		heads[level].prev = tails[0];
+		tails[0] = tails[level];
+		heads[level] = tails[level] = null;
+	    }
+
+	    nonEmpty = (heads[0] == null) ? 0 : 1;
+	}
+
+	private void append(ThreadState state, int level) {
+	    state.queue = this;
+	    state.queuedLevel = level;
+	    state.queuedEpoch = queueEpoch;
+	    state.next = null;
+	    state.prev = tails[level];
+	    if (tails[level] == null)
+		heads[level] = state;
+	    else
+		tails[level].next = state;
+	    tails[level] = state;
+	    nonEmpty |= 1 << level;
+	}
+
+	/**
+	 * Take the specified thread out of its list. Must be called after
+	 * <tt>catchUp()</tt>: a thread queued before the last splice is in
+	 * the top list, whatever level it was queued at.
+	 */
+	private void unlink(ThreadState state) {
+	    int level = (state.queuedEpoch == queueEpoch) ? state.queuedLevel : 0;
+
+	    if (state.prev == null)
+		heads[level] = state.next;
+	    else
+		state.prev.next = state.next;
+	    if (state.next == null)
+		tails[level] = state.prev;
+	    else
+		state.next.prev = state.prev;
+	    if (heads[level] == null)
+		nonEmpty &= ~(1 << level);
+
+	    state.next = state.prev = null;
+	    state.queue = null;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int level=0; level<levels; level++) {
+		for (ThreadState s=heads[level]; s!=null; s=s.next)
+		    System.out.print(s.thread + "(" + level + ") ");
+	    }
+	}
+
+	/** <tt>true</tt> if this is the ready queue. */
+	private boolean isReadyQueue;
+	/** The epoch this queue's lists were last arranged for. */
+	int queueEpoch;
+	private ThreadState[] heads = new ThreadState[levels];
+	private ThreadState[] tails = new ThreadState[levels];
+	/** Bit <i>i</i> is set if level <i>i</i> is not empty. */
+	private int nonEmpty = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its level and how long it has run
+     * there.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	    this.stateEpoch = epoch;
+	}
+
+	/**
+	 * Return this thread's level, which is the top level if there has
+	 * been a boost since it was last set.
+	 */
+	int getLevel() {
+	    if (stateEpoch != epoch) {
+		stateEpoch = epoch;
+		level = 0;
+		used = 0;
+	    }
+	    return level;
+	}
+
+	void setLevel(int level) {
+	    getLevel();
+	    this.level = level;
+	    this.used = 0;
+	}
+
+	/**
+	 * Called when the thread yields after running for <tt>ticks</tt>.
+	 */
+	void ran(long ticks) {
+	    getLevel();
+	    used += ticks;
+	    if (used >= ((long) quantum << level) && level < levels-1) {
+		level++;
+		used = 0;
+	    }
+	}
+
+	/**
+	 * Called when the thread is readied after blocking.
+	 */
+	void woken() {
+	    getLevel();
+	    if (level > 0)
+		level--;
+	    used = 0;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The level, valid only if <tt>stateEpoch</tt> is current. */
+	protected int level = 0;
+	protected int stateEpoch;
+	/** The ticks run at this level since arriving there. */
+	protected long used = 0;
+	/** When this thread was last dispatched from the ready queue. */
+	protected long dispatched = 0;
+	/** The queue this thread is waiting on, or <tt>null</tt>. */
+	protected FeedbackQueue queue = null;
+	/** The level and queue epoch this thread was queued at. */
+	protected int queuedLevel, queuedEpoch;
+	/** The neighbours in the same list of a <tt>FeedbackQueue</tt>. */
+	protected ThreadState next = null, prev = null;
+    }
+
+    private int levels;
+    private int quantum;
+    private int boostInterval;
+
+    /** Incremented by each boost. */
+    private int epoch = 0;
+    private long nextBoost;
+}
@@ -0,0 +1,209 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>Phaser</tt> is a reusable barrier whose number of parties can
+ * change. Each cycle of the barrier is a numbered <i>phase</i>. A party that
+ * has done its work for the current phase <i>arrives</i>; when every
+ * registered party has arrived, the phaser advances to the next phase and
+ * wakes up every thread waiting for that.
+ *
+ * <ul>
+ * <li><tt>register()</tt>: add a party, which must arrive at the current
+ * phase before it can end.
+ * <li><tt>arrive()</tt>: arrive at the current phase, without waiting.
+ * <li><tt>arriveAndDeregister()</tt>: arrive, and leave the phaser.
+ * <li><tt>awaitAdvance(phase)</tt>: wait for the specified phase to end.
+ * <li><tt>arriveAndAwaitAdvance()</tt>: arrive, and wait for the phase to
+ * end, like <tt>Barrier.await()</tt>.
+ * </ul>
+ *
+ * <p>
+ * When the last party deregisters, the phase ends at once.
+ */
+public class Phaser {
+    /**
+     * Allocate a new phaser with no parties.
+     */
+    public Phaser() {
+	this(0);
+    }
+
+    /**
+     * Allocate a new phaser.
+     *
+     * @param	parties	the number of parties registered at first.
+     */
+    public Phaser(int parties) {
+	Lib.assertTrue(parties >= 0);
+
+	registered = unarrived = parties;
+    }
+
+    /**
+     * Add a party to this phaser.
+     *
+     * @return	the current phase.
+     */
+    public int register() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	registered++;
+	unarrived++;
+	int current = phase;
+
+	Machine.interrupt().restore(intStatus);
+	return current;
+    }
+
+    /**
+     * Arrive at the current phase without waiting for it to end.
+     *
+     * @return	the phase arrived at.
+     */
+    public int arrive() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int current = arrive(0);
+
+	Machine.interrupt().restore(intStatus);
+	return current;
+    }
+
+    /**
+     * Arrive at the current phase, and deregister from this phaser.
+     *
+     * @return	the phase arrived at.
+     */
+    public int arriveAndDeregister() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int current = arrive(1);
+
+	Machine.interrupt().restore(intStatus);
+	return current;
+    }
+
+    /**
+     * Arrive at the current phase, and wait for it to end.
+     *
+     * @return	the new phase.
+     */
+    public int arriveAndAwaitAdvance() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int current = arrive(0);
+	waitFor(current);
+
+	Machine.interrupt().restore(intStatus);
+	return phase;
+    }
+
+    /**
+     * Wait until the specified phase has ended. Returns at once if it
+     * already has.
+     *
+     * @param	phase	the phase to wait for.
+     * @return	the new phase.
+     */
+    public int awaitAdvance(int phase) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	waitFor(phase);
+
+	Machine.interrupt().restore(intStatus);
+	return this.phase;
+    }
+
+    /**
+     * Return the current phase.
+     *
+     * @return	the current phase.
+     */
+    public int getPhase() {
+	return phase;
+    }
+
+    /**
+     * Return the number of parties registered.
+     *
+     * @return	the number of registered parties.
+     */
+    public int getRegisteredParties() {
+	return registered;
+    }
+
+    /**
+     * Record an arrival, and end the phase if it was the last one. Must be
+     * called with interrupts disabled.
+     */
+    private int arrive(int deregister) {
+	Lib.assertTrue(unarrived > 0);
+
+	int current = phase;
+	registered -= deregister;
+	if (--unarrived == 0) {
+	    phase++;
+	    unarrived = registered;
+	    for (KThread thread; (thread = waitQueue.nextThread()) != null; )
+		thread.ready();
+	}
+
+	return current;
+    }
+
+    /**
+     * Sleep until the specified phase is over. Must be called with
+     * interrupts disabled.
+     */
+    private void waitFor(int phase) {
+	// only the current phase can still be waited for
+	if (phase == this.phase) {
+	    waitQueue.waitForAccess(KThread.currentThread());
+	    KThread.sleep();
+	}
+    }
+
+    /**
+     * Test that parties advance together, and that one can join and leave
+     * while the others carry on.
+     */
+    public static void selfTest() {
+	final Phaser phaser = new Phaser(1);
+	final int parties = 3, phases = 4;
+	final int[] done = new int[phases];
+
+	for (int i=0; i<parties; i++) {
+	    phaser.register();
+	    new KThread(new Runnable() {
+		    public void run() {
+			for (int p=0; p<phases; p++) {
+			    done[p]++;
+			    Lib.assertTrue(phaser.arriveAndAwaitAdvance() == p+1);
+			    Lib.assertTrue(done[p] == parties);
+			}
+			phaser.arriveAndDeregister();
+		    }
+		}).setName("phaser party " + i).fork();
+	}
+
+	// the main thread only watches, so it leaves each phase at once
+	for (int p=0; p<phases; p++) {
+	    Lib.assertTrue(phaser.arrive() == p);
+	    Lib.assertTrue(phaser.awaitAdvance(p) == p+1);
+	}
+
+	// the parties all arrive and deregister in the last phase
+	Lib.assertTrue(phaser.arriveAndDeregister() == phases);
+	Lib.assertTrue(phaser.awaitAdvance(phases) == phases+1);
+	Lib.assertTrue(phaser.getRegisteredParties() == 0);
+    }
+
+    private int phase = 0;
+    private int registered;
+    /** The number of registered parties yet to arrive at this phase. */
+    private int unarrived;
+    private ThreadQueue waitQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
+}
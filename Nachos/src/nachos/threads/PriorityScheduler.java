@@ -1,7 +1,6 @@
 package nachos.threads;
 import nachos.machine.*;
 
-import java.util.Map;
 import java.util.HashMap;
 import java.util.HashSet;
 //I chose these because they're familiar for me to work with
@@ -125,6 +124,119 @@ public class PriorityScheduler extends Scheduler {
     	return (ThreadState) thread.schedulingState;
     }
 
+    /**
+     * Tests priority donation through a chain of nested locks with a wide set
+     * of waiters at its head, checking that each priority change at the head
+     * reaches the end of the chain. The chain length, number of waiters and
+     * number of changes are set by <tt>PriorityScheduler.testDepth</tt>,
+     * <tt>PriorityScheduler.testWidth</tt> and
+     * <tt>PriorityScheduler.testChanges</tt>. If
+     * <tt>PriorityScheduler.benchmark</tt> is set, the changes are also timed
+     * and the result printed, so the same test serves as a stress benchmark.
+     */
+    public void selfTest() {
+	final int depth = Config.getInteger("PriorityScheduler.testDepth", 8);
+	final int width = Config.getInteger("PriorityScheduler.testWidth", 8);
+	final int changes = Config.getInteger("PriorityScheduler.testChanges",
+					      1000);
+	final boolean benchmark =
+	    Config.getBoolean("PriorityScheduler.benchmark", false);
+	Lib.assertTrue(depth > 0 && width > 0 && changes >= 0);
+
+	final Lock[] locks = new Lock[depth];
+	for (int i=0; i<depth; i++)
+	    locks[i] = new Lock();
+
+	final Semaphore ready = new Semaphore(0);
+	final Semaphore go = new Semaphore(0);
+	final Semaphore done = new Semaphore(0);
+
+	/* Link i holds lock i and waits for lock i+1; the last link holds the
+	 * last lock and waits for go. Fork from the end so each lock is held
+	 * before the next link asks for it.
+	 */
+	KThread[] chain = new KThread[depth];
+	for (int i=depth-1; i>=0; i--) {
+	    final int link = i;
+	    chain[i] = new KThread(new Runnable() {
+		    public void run() {
+			locks[link].acquire();
+			ready.V();
+			if (link == depth-1) {
+			    go.P();
+			}
+			else {
+			    locks[link+1].acquire();
+			    locks[link+1].release();
+			}
+			locks[link].release();
+			done.V();
+		    }
+		}).setName("chain " + i);
+	    selfTestSetPriority(chain[i], priorityMinimum);
+	    chain[i].fork();
+	    ready.P();
+	}
+
+	/* Waiters on the first lock, all above our own priority so that
+	 * yielding lets each one run until it blocks.
+	 */
+	KThread[] waiters = new KThread[width];
+	int highest = priorityMinimum;
+	for (int i=0; i<width; i++) {
+	    int priority = priorityDefault+1 + i % (priorityMaximum-priorityDefault-1);
+	    waiters[i] = new KThread(new Runnable() {
+		    public void run() {
+			locks[0].acquire();
+			locks[0].release();
+			done.V();
+		    }
+		}).setName("waiter " + i);
+	    selfTestSetPriority(waiters[i], priority);
+	    highest = Math.max(highest, priority);
+	    waiters[i].fork();
+	    KThread.yield();
+	}
+
+	KThread tail = chain[depth-1];
+	Lib.assertTrue(selfTestGetEffectivePriority(tail) == highest);
+
+	boolean intStatus = Machine.interrupt().disable();
+	long start = System.currentTimeMillis();
+	for (int i=0; i<changes; i++) {
+	    boolean raise = (i % 2 == 0);
+	    setPriority(waiters[0], raise ? priorityMaximum : priorityDefault+1);
+	    Lib.assertTrue(getEffectivePriority(tail) ==
+			   (raise ? priorityMaximum : highest));
+	}
+	long elapsed = System.currentTimeMillis() - start;
+	Machine.interrupt().restore(intStatus);
+
+	if (benchmark) {
+	    System.out.println("PriorityScheduler: " + changes +
+			       " donation changes through " + depth +
+			       " locks and " + width + " waiters in " +
+			       elapsed + " ms");
+	}
+
+	go.V();
+	for (int i=0; i<depth+width; i++)
+	    done.P();
+    }
+
+    private void selfTestSetPriority(KThread thread, int priority) {
+	boolean intStatus = Machine.interrupt().disable();
+	setPriority(thread, priority);
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private int selfTestGetEffectivePriority(KThread thread) {
+	boolean intStatus = Machine.interrupt().disable();
+	int priority = getEffectivePriority(thread);
+	Machine.interrupt().restore(intStatus);
+	return priority;
+    }
+
     /**
      * A <tt>ThreadQueue</tt> that sorts threads by priority.
      */
@@ -145,7 +257,7 @@ public class PriorityScheduler extends Scheduler {
     		getThreadState(thread).waitForAccess(this);
 
     		if(transferPriority)
-            donationController.transferPriority(getThreadState(thread));
+    			donationController.update();
     	}
 
     	public void acquire(KThread thread) {
@@ -165,17 +277,28 @@ public class PriorityScheduler extends Scheduler {
     		ThreadTie tying = queue.poll();
     		threadStates.remove(tying.threadsstate);
     		if(transferPriority)
-    			donationController.resetMaximumPriority(tying.threadsstate);
+    			donationController.update();
     		acquire(tying.threadsstate.thread);
     		return tying.threadsstate.thread;
     	}
 
+    	public boolean remove(KThread thread) {
+    		Lib.assertTrue(Machine.interrupt().disabled());
+    		ThreadState state = getThreadState(thread);
+    		ThreadTie tying = threadStates.remove(state);
+    		if(tying == null)
+    			return false;
+    		queue.remove(tying);
+    		state.parents.remove(this);
+    		if(transferPriority)
+    			donationController.update();
+    		return true;
+    	}
+
     	public void updateThreadState(ThreadState s) {
-    		if(threadStates.containsKey(s)) {
-    			ThreadTie tying = threadStates.get(s);
-    			queue.remove(tying);
-    			queue.add(tying);
-    		}
+    		ThreadTie tying = threadStates.get(s);
+    		if(tying != null)
+    			queue.reposition(tying);
     	}
 	/**
 	 * Return the next thread that <tt>nextThread()</tt> would return,
@@ -201,21 +324,19 @@ public class PriorityScheduler extends Scheduler {
 	
 	public boolean transferPriority;
 	public HashMap<ThreadState, ThreadTie> threadStates = new HashMap<ThreadState, ThreadTie>();
-    public java.util.PriorityQueue<ThreadTie> queue = new java.util.PriorityQueue<ThreadTie>();
+    public BucketQueue queue = new BucketQueue();
     public Donater donationController;
 	
 	
 
-    protected class ThreadTie implements Comparable{
+    protected class ThreadTie {
 
     	public ThreadState threadsstate;
         public long timelngth;
-        
-        public int compareTo(Object x) {
-            Lib.assertTrue(x instanceof ThreadTie);
-            ThreadTie s = (ThreadTie) x;
-            return (threadsstate.getEffectivePriority() == s.threadsstate.getEffectivePriority()) ? (int)(timelngth - s.timelngth) : (s.threadsstate.getEffectivePriority() - threadsstate.getEffectivePriority());
-        }
+
+        /** The bucket this tie is linked into, and its neighbours there. */
+        protected int bucket;
+        protected ThreadTie prev, next;
         
         public ThreadTie(ThreadState s) {
             threadsstate = s;
@@ -223,11 +344,95 @@ public class PriorityScheduler extends Scheduler {
         }
 
     }
+
+    /**
+     * The waiting threads, kept in one FIFO bucket per priority level. A
+     * bitmap records which buckets are non-empty, so the highest waiting
+     * priority is a single <tt>Integer.numberOfLeadingZeros()</tt>, and
+     * adding, removing or moving a tie between buckets only relinks it.
+     *
+     * <p>
+     * Within a bucket ties stay sorted by <tt>timelngth</tt>, oldest first, so
+     * equal priorities still go to the thread that has waited longest. A new
+     * waiter is always the newest and is appended directly. A tie moved by a
+     * priority change is inserted by walking back from the tail past the
+     * ties that started waiting after it.
+     */
+    protected class BucketQueue {
+        public boolean isEmpty() {
+            return bitmap == 0;
+        }
+
+        /** The highest effective priority waiting. The queue must not be empty. */
+        public int maxPriority() {
+            return 31 - Integer.numberOfLeadingZeros(bitmap);
+        }
+
+        public ThreadTie peek() {
+            return isEmpty() ? null : heads[maxPriority()];
+        }
+
+        public ThreadTie poll() {
+            ThreadTie tying = peek();
+            if(tying != null)
+                remove(tying);
+            return tying;
+        }
+
+        public void add(ThreadTie tying) {
+            int p = tying.threadsstate.getEffectivePriority();
+            Lib.assertTrue(p >= priorityMinimum && p <= priorityMaximum);
+
+            ThreadTie after = tails[p];
+            while(after != null && after.timelngth > tying.timelngth)
+                after = after.prev;
+
+            tying.bucket = p;
+            tying.prev = after;
+            tying.next = (after == null) ? heads[p] : after.next;
+            if(tying.prev == null)
+                heads[p] = tying;
+            else
+                tying.prev.next = tying;
+            if(tying.next == null)
+                tails[p] = tying;
+            else
+                tying.next.prev = tying;
+            bitmap |= 1 << p;
+        }
+
+        public void remove(ThreadTie tying) {
+            int p = tying.bucket;
+            if(tying.prev == null)
+                heads[p] = tying.next;
+            else
+                tying.prev.next = tying.next;
+            if(tying.next == null)
+                tails[p] = tying.prev;
+            else
+                tying.next.prev = tying.prev;
+            tying.prev = tying.next = null;
+            if(heads[p] == null)
+                bitmap &= ~(1 << p);
+        }
+
+        /** Move a tie to the bucket for its current effective priority. */
+        public void reposition(ThreadTie tying) {
+            if(tying.bucket != tying.threadsstate.getEffectivePriority()) {
+                remove(tying);
+                add(tying);
+            }
+        }
+
+        private ThreadTie[] heads = new ThreadTie[priorityMaximum+1];
+        private ThreadTie[] tails = new ThreadTie[priorityMaximum+1];
+        private int bitmap = 0;
+    }
 } // end of PriorityQueue
     
     protected class Donater{
 
-        public Donater(java.util.PriorityQueue<ThreadPriorityQueue.ThreadTie> queue){ //here we implement priority inversion by switching the high and the low
+        public Donater(ThreadPriorityQueue.BucketQueue queue){ //here we implement priority inversion by switching the high and the low
         	this.queue = queue;
         	this.maximumPriority = priorityMinimum;
         	this.target = null;
@@ -240,22 +445,22 @@ public class PriorityScheduler extends Scheduler {
             target.donatePriority(this, maximumPriority);
         }
 
-        public void resetMaximumPriority(ThreadState t) {
-            if(t.getEffectivePriority() == maximumPriority) {
-                maximumPriority = priorityMinimum;
-                for(ThreadPriorityQueue.ThreadTie tying : queue)
-                    maximumPriority = Math.max(maximumPriority, tying.threadsstate.getEffectivePriority());
-            }
-        }
-
-        public void transferPriority(ThreadState t) {
-            maximumPriority = Math.max(t.getEffectivePriority(), maximumPriority);
-            if(target != null && maximumPriority > target.getEffectivePriority()) {
+        /**
+         * Recompute the donation from the highest waiting priority, and pass
+         * it on to the holder only if it changed. Called whenever a thread
+         * joins or leaves the queue or a waiter's priority changes, so a
+         * change travels along a chain of locks only as far as it matters.
+         */
+        public void update() {
+            int max = queue.isEmpty() ? priorityMinimum : queue.maxPriority();
+            if(max == maximumPriority)
+                return;
+            maximumPriority = max;
+            if(target != null)
                 target.donatePriority(this, maximumPriority);
-            }
         }
         
-        protected java.util.PriorityQueue<ThreadPriorityQueue.ThreadTie> queue;
+        protected ThreadPriorityQueue.BucketQueue queue;
         protected ThreadState target;
         protected int maximumPriority;
         
@@ -330,9 +535,22 @@ public class PriorityScheduler extends Scheduler {
 	    updateP();
 	}
 	
+	/**
+	 * Called after anything that may have changed the effective priority.
+	 * If it did change, move this thread in every queue it waits on and
+	 * let those queues update their donations, which recurses along the
+	 * lock chain until a holder's effective priority stays the same.
+	 */
 	public void updateP() {
+        int current = getEffectivePriority();
+        if(current == knownPriority)
+            return;
+        knownPriority = current;
+
         for(ThreadPriorityQueue x : parents) {
             x.updateThreadState(this);
+            if(x.transferPriority)
+                x.donationController.update();
         }
     }
 	
@@ -372,6 +590,8 @@ public class PriorityScheduler extends Scheduler {
 	protected int priority;
 	protected HashSet<ThreadPriorityQueue> parents = new HashSet<ThreadPriorityQueue>(); //I could use another data type but I'm familiar with this and like it
 	protected PriorityController effectivePriority = new PriorityController(0);
+	/** The effective priority as of the last <tt>updateP()</tt>. */
+	protected int knownPriority = -1;
 	
 	protected class PriorityController {
         PriorityController(int priority) {
@@ -380,21 +600,32 @@ public class PriorityScheduler extends Scheduler {
         }
         
         void donate(Donater q, int priority) {
-            this.donations.put(q, priority);
-            max_donation = Math.max(max_donation, priority);
+            Integer old = this.donations.put(q, priority);
+            if(old != null)
+                uncount(old);
+            count(priority);
         }
         
         void remover(Donater x) {
-            if(donations.containsKey(x)) {
-                int tracker = donations.get(x);
-                donations.remove(x);
-                if(max_donation == tracker) {
-                    max_donation = 0;
-                    for(Map.Entry<Donater, Integer> e : donations.entrySet()) {
-                        max_donation = Math.max(max_donation, e.getValue());
-                    }
-                }
-            }
+            Integer tracker = donations.remove(x);
+            if(tracker != null)
+                uncount(tracker);
+        }
+
+        /*
+         * Donations are also counted per priority level, with a bitmap of
+         * the levels in use, so the largest is known without a rescan.
+         */
+        private void count(int donation) {
+            if(levelCounts[donation]++ == 0)
+                levels |= 1 << donation;
+            max_donation = 31 - Integer.numberOfLeadingZeros(levels);
+        }
+
+        private void uncount(int donation) {
+            if(--levelCounts[donation] == 0)
+                levels &= ~(1 << donation);
+            max_donation = (levels == 0) ? 0 : 31 - Integer.numberOfLeadingZeros(levels);
         }
 
         void setPriority(int priority) {
@@ -407,6 +638,8 @@ public class PriorityScheduler extends Scheduler {
 
         protected int priority, max_donation;
         protected HashMap<PriorityScheduler.Donater, Integer> donations = new HashMap<Donater, Integer>();
+        protected int[] levelCounts = new int[priorityMaximum+1];
+        protected int levels = 0;
     }
 	
     }
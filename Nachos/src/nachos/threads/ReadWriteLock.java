@@ -0,0 +1,244 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.HashSet;
+
+/**
+ * A <tt>ReadWriteLock</tt> can be held by any number of <i>readers</i> at
+ * once, or by a single <i>writer</i>:
+ *
+ * <ul>
+ * <li><tt>acquireRead()</tt>: wait until no writer holds or is waiting for the
+ * lock, then hold it as a reader.
+ * <li><tt>acquireWrite()</tt>: wait until nobody holds the lock, then hold it
+ * as the writer.
+ * </ul>
+ *
+ * <p>
+ * Writers are preferred: once a writer is waiting, new readers wait behind
+ * it, and a writer releasing the lock hands it to the next waiting writer
+ * before any waiting reader. When the last writer is done, every waiting
+ * reader is let in at once.
+ *
+ * <p>
+ * Waiting threads donate priority through their wait queues, which transfer
+ * priority. A queue has one owner at a time, so while the lock is held by
+ * readers, donations go to one of them; when that reader releases the lock,
+ * they move to another reader that still holds it.
+ */
+public class ReadWriteLock {
+    /**
+     * Allocate a new reader-writer lock. The lock will initially be free.
+     */
+    public ReadWriteLock() {
+    }
+
+    /**
+     * Atomically acquire this lock for reading. The current thread must not
+     * already hold this lock.
+     */
+    public void acquireRead() {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer != null || waitingWriters > 0) {
+	    waitingReaders++;
+	    readQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+	else {
+	    addReader(thread);
+	}
+
+	Lib.assertTrue(readers.contains(thread));
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock, which the current thread holds for
+     * reading.
+     */
+    public void releaseRead() {
+	KThread thread = KThread.currentThread();
+	Lib.assertTrue(readers.contains(thread));
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	readers.remove(thread);
+
+	if (readers.isEmpty()) {
+	    owner = null;
+	    if (waitingWriters > 0)
+		grantWrite();
+	}
+	else if (owner == thread) {
+	    setOwner(readers.iterator().next());
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically acquire this lock for writing. The current thread must not
+     * already hold this lock.
+     */
+    public void acquireWrite() {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer != null || !readers.isEmpty()) {
+	    waitingWriters++;
+	    writeQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+	else {
+	    writer = thread;
+	    setOwner(thread);
+	}
+
+	Lib.assertTrue(writer == thread);
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock, which the current thread holds for
+     * writing.
+     */
+    public void releaseWrite() {
+	Lib.assertTrue(isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	writer = null;
+	owner = null;
+	if (waitingWriters > 0) {
+	    grantWrite();
+	}
+	else {
+	    for (KThread reader; (reader = readQueue.nextThread()) != null; ) {
+		waitingReaders--;
+		addReader(reader);
+		reader.ready();
+	    }
+	    Lib.assertTrue(waitingReaders == 0);
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if the current thread holds this lock, for reading or writing.
+     *
+     * @return	true if the current thread holds this lock.
+     */
+    public boolean isHeldByCurrentThread() {
+	KThread thread = KThread.currentThread();
+	return (writer == thread || readers.contains(thread));
+    }
+
+    /**
+     * Test if the current thread holds this lock for writing.
+     *
+     * @return	true if the current thread holds this lock for writing.
+     */
+    public boolean isWriteHeldByCurrentThread() {
+	return (writer == KThread.currentThread());
+    }
+
+    /**
+     * Hand the lock to the next waiting writer, which is woken up.
+     */
+    private void grantWrite() {
+	waitingWriters--;
+	writer = writeQueue.nextThread();
+	setOwner(writer);
+	writer.ready();
+    }
+
+    private void addReader(KThread thread) {
+	readers.add(thread);
+	if (owner == null)
+	    setOwner(thread);
+    }
+
+    /**
+     * Make the specified holder the thread both wait queues donate to.
+     */
+    private void setOwner(KThread thread) {
+	owner = thread;
+	writeQueue.handOff(thread);
+	readQueue.handOff(thread);
+    }
+
+    /**
+     * Tests that readers share the lock, that a waiting writer keeps new
+     * readers out, and that the writer goes before them.
+     */
+    public static void selfTest() {
+	final ReadWriteLock lock = new ReadWriteLock();
+	final StringBuffer order = new StringBuffer();
+	final Semaphore done = new Semaphore(0);
+
+	lock.acquireRead();
+
+	// a second reader gets in alongside the first
+	KThread reader1 = new KThread(new Runnable() {
+		public void run() {
+		    lock.acquireRead();
+		    order.append('r');
+		    lock.releaseRead();
+		    done.V();
+		}
+	    }).setName("reader 1");
+	reader1.fork();
+	reader1.join();
+
+	// a writer has to wait for the first reader...
+	new KThread(new Runnable() {
+		public void run() {
+		    lock.acquireWrite();
+		    order.append('W');
+		    lock.releaseWrite();
+		    done.V();
+		}
+	    }).setName("writer").fork();
+	while (lock.waitingWriters == 0)
+	    KThread.yield();
+
+	// ...and a reader arriving now has to wait for the writer
+	new KThread(new Runnable() {
+		public void run() {
+		    lock.acquireRead();
+		    order.append('r');
+		    lock.releaseRead();
+		    done.V();
+		}
+	    }).setName("reader 2").fork();
+	while (lock.waitingReaders == 0)
+	    KThread.yield();
+
+	order.append('R');
+	lock.releaseRead();
+
+	for (int i=0; i<3; i++)
+	    done.P();
+
+	Lib.assertTrue(order.toString().equals("rRWr"));
+    }
+
+    private KThread writer = null;
+    private HashSet<KThread> readers = new HashSet<KThread>();
+    /** The holder the wait queues donate to, or <tt>null</tt> if free. */
+    private KThread owner = null;
+    private int waitingReaders = 0, waitingWriters = 0;
+
+    private ThreadQueue readQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+    private ThreadQueue writeQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+}
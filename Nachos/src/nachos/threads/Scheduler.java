@@ -52,6 +52,19 @@ public abstract class Scheduler {
      */
     public abstract ThreadQueue newThreadQueue(boolean transferPriority);
 
+    /**
+     * Allocate the queue of threads waiting for the processor.
+     * <tt>KThread</tt> calls this once, to create its ready queue, and
+     * schedulers may call it in their self-tests. By default this is just
+     * <tt>newThreadQueue(false)</tt>; a scheduler that accounts for processor
+     * time can return a queue that knows it guards the processor.
+     *
+     * @return	a new ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	return newThreadQueue(false);
+    }
+
     /**
      * Get the priority of the specified thread. Must be called with
      * interrupts disabled.
@@ -154,4 +167,26 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
 	return false;
     }
+
+    /**
+     * Called when the current thread has finished one job of periodic work,
+     * by <tt>Alarm.waitForNextPeriod()</tt>. A scheduler that knows about
+     * deadlines should account for the job and return the time the thread's
+     * next job is released. Must be called with interrupts disabled.
+     *
+     * @param	thread	the current thread.
+     * @return	the time the next job is released, or <tt>-1</tt> if this
+     *		scheduler does not know the thread's period.
+     */
+    public long finishJob(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	return -1;
+    }
+
+    /**
+     * Tests whether this scheduler is working. <tt>ThreadedKernel</tt> calls
+     * this on the configured scheduler; by default it does nothing.
+     */
+    public void selfTest() {
+    }
 }
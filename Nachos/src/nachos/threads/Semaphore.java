@@ -48,6 +48,29 @@ public class Semaphore {
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Atomically wait for at most <i>x</i> ticks for this semaphore to become
+     * non-zero, and decrement it if it did.
+     *
+     * @param	x	the maximum number of clock ticks to wait.
+     * @return	<tt>true</tt> if the semaphore was decremented, or
+     *		<tt>false</tt> if the wait timed out.
+     */
+    public boolean P(long x) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	boolean decremented = true;
+	if (value == 0) {
+	    decremented = (x > 0 && ThreadedKernel.alarm.waitOn(waitQueue, x));
+	}
+	else {
+	    value--;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return decremented;
+    }
+
     /**
      * Atomically increment this semaphore and wake up at most one other thread
      * sleeping on this semaphore.
@@ -96,6 +119,19 @@ public class Semaphore {
 	    ping.V();
 	    pong.P();
 	}
+
+	// a timed P() gives up, and the V() that follows is not lost to it
+	Semaphore timed = new Semaphore(0);
+	Lib.assertTrue(!timed.P(0));
+	Lib.assertTrue(!timed.P(1000));
+	timed.V();
+	Lib.assertTrue(timed.P(1000));
+
+	new KThread(new PingTest(ping, pong)).setName("timed ping").fork();
+	for (int i=0; i<10; i++) {
+	    ping.V();
+	    Lib.assertTrue(pong.P(1000000));
+	}
     }
 
     private int value;
@@ -0,0 +1,438 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.HashSet;
+
+/**
+ * A scheduler that shares access in proportion to tickets, deterministically.
+ *
+ * <p>
+ * A stride scheduler gives each thread a <i>stride</i> inversely
+ * proportional to its tickets, and a <i>pass</i> that advances by its stride
+ * every time it is chosen. The next thread to be dequeued is always the
+ * waiting thread with the smallest pass, so over time each thread is chosen
+ * in proportion to its tickets, like a lottery scheduler, but without the
+ * random variation. Among threads with the same pass, the one that has been
+ * waiting longest is chosen.
+ *
+ * <p>
+ * A thread's pass measures its share of the processor, so it only advances
+ * when the thread is chosen from the ready queue. Other queues, such as those
+ * of locks, order their waiters by the same pass but leave it unchanged.
+ *
+ * <p>
+ * Each queue keeps its waiters in a binary min-heap ordered by pass, so
+ * choosing a thread takes O(log n) time. A thread's pass only changes when it
+ * is chosen or starts waiting, never while it is in a heap, so a change of
+ * tickets does not have to move anything in the heap.
+ *
+ * <p>
+ * A thread that becomes ready with a pass lower than the pass of the last
+ * thread chosen to run is moved up to it, so that a thread that has been
+ * blocked for a long time cannot monopolize the processor when it returns.
+ *
+ * <p>
+ * Like a lottery scheduler, a stride scheduler transfers tickets through
+ * locks and joins, and the tickets add.
+ */
+public class StrideScheduler extends Scheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer tickets from waiting threads
+     *					to the owning thread.
+     * @return	a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new StrideQueue(transferPriority, false);
+    }
+
+    /**
+     * Allocate the ready queue, the only stride queue that advances passes.
+     *
+     * @return	a new stride thread queue for the processor.
+     */
+    public ThreadQueue newReadyQueue() {
+	return new StrideQueue(false, true);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).tickets;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return (int) Math.min(getThreadState(thread).getEffectiveTickets(),
+			      priorityMaximum);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		   priority <= priorityMaximum);
+
+	getThreadState(thread).setTickets(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority < priorityMaximum);
+	if (changed)
+	    setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority > priorityMinimum);
+	if (changed)
+	    setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets a thread can have.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * The stride of a thread with one ticket. A thread with <i>n</i>
+     * effective tickets has a stride of <tt>stride1/n</tt>.
+     */
+    private static final long stride1 = 1L << 40;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Tests ticket transfer through a lock, and checks that threads are
+     * chosen to run in exact proportion to their tickets.
+     */
+    public void selfTest() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	ThreadQueue outer = newThreadQueue(true);
+	ThreadQueue inner = newThreadQueue(true);
+	KThread holder = new KThread(), middle = new KThread();
+	KThread waiter1 = new KThread(), waiter2 = new KThread();
+	setPriority(holder, 2);
+	setPriority(middle, 3);
+	setPriority(waiter1, 5);
+	setPriority(waiter2, 7);
+
+	outer.acquire(holder);
+	inner.acquire(middle);
+	outer.waitForAccess(middle);
+	inner.waitForAccess(waiter1);
+	inner.waitForAccess(waiter2);
+	Lib.assertTrue(getEffectivePriority(middle) == 3+5+7);
+	Lib.assertTrue(getEffectivePriority(holder) == 2+3+5+7);
+
+	setPriority(waiter1, 1);
+	Lib.assertTrue(getEffectivePriority(holder) == 2+3+1+7);
+
+	// being chosen for a lock does not use up any of a thread's share
+	long pass = getThreadState(middle).pass;
+	Lib.assertTrue(outer.nextThread() == middle);
+	Lib.assertTrue(getThreadState(middle).pass == pass);
+	Lib.assertTrue(getEffectivePriority(holder) == 2);
+	Lib.assertTrue(getEffectivePriority(middle) == 3+1+7);
+
+	/* Threads with 1, 2 and 3 tickets should be chosen exactly 100, 200
+	 * and 300 times out of 600.
+	 */
+	ThreadQueue queue = newReadyQueue();
+	KThread[] threads = new KThread[3];
+	for (int i=0; i<threads.length; i++) {
+	    threads[i] = new KThread();
+	    setPriority(threads[i], i+1);
+	    queue.waitForAccess(threads[i]);
+	}
+
+	int[] chosen = new int[threads.length];
+	for (int i=0; i<600; i++) {
+	    KThread next = queue.nextThread();
+	    chosen[getPriority(next)-1]++;
+	    queue.waitForAccess(next);
+	}
+	for (int i=0; i<threads.length; i++)
+	    Lib.assertTrue(chosen[i] == 100*(i+1));
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that chooses the waiting thread with the
+     * smallest pass.
+     */
+    protected class StrideQueue extends ThreadQueue {
+	StrideQueue(boolean transferPriority, boolean readyQueue) {
+	    this.transferPriority = transferPriority;
+	    this.readyQueue = readyQueue;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    Lib.assertTrue(!state.waitingOn.contains(this));
+
+	    if (readyQueue)
+		state.pass = Math.max(state.pass, lastPass);
+	    state.arrival = arrivals++;
+	    push(state);
+
+	    state.waitingOn.add(this);
+	    adjustTickets(state.getEffectiveTickets());
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    Lib.assertTrue(!state.waitingOn.contains(this));
+
+	    if (holder != null)
+		holder.receive(-donation);
+	    holder = state;
+	    holder.receive(donation);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (size == 0)
+		return null;
+
+	    ThreadState next = heap[0];
+	    removeAt(0);
+	    next.waitingOn.remove(this);
+	    adjustTickets(-next.getEffectiveTickets());
+
+	    if (readyQueue) {
+		lastPass = next.pass;
+		next.pass += next.getStride();
+	    }
+
+	    acquire(next.thread);
+	    return next.thread;
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (!state.waitingOn.remove(this))
+		return false;
+
+	    removeAt(state.index);
+	    adjustTickets(-state.getEffectiveTickets());
+	    return true;
+	}
+
+	/**
+	 * Add to the total tickets of the waiting threads, and pass the change
+	 * on to the holder if this queue transfers tickets.
+	 */
+	void adjustTickets(long change) {
+	    totalTickets += change;
+
+	    if (!transferPriority || totalTickets == donation)
+		return;
+
+	    long transfer = totalTickets - donation;
+	    donation = totalTickets;
+	    if (holder != null)
+		holder.receive(transfer);
+	}
+
+	private boolean before(ThreadState a, ThreadState b) {
+	    return (a.pass < b.pass || (a.pass == b.pass && a.arrival < b.arrival));
+	}
+
+	private void push(ThreadState state) {
+	    if (size == heap.length) {
+		ThreadState[] larger = new ThreadState[size*2];
+		System.arraycopy(heap, 0, larger, 0, size);
+		heap = larger;
+	    }
+
+	    heap[size] = state;
+	    siftUp(size++);
+	}
+
+	private void removeAt(int i) {
+	    ThreadState last = heap[--size];
+	    heap[size] = null;
+	    if (i < size) {
+		heap[i] = last;
+		siftUp(i);
+		siftDown(last.index);
+	    }
+	}
+
+	private void siftUp(int i) {
+	    ThreadState state = heap[i];
+	    while (i > 0 && before(state, heap[(i-1)/2])) {
+		heap[i] = heap[(i-1)/2];
+		heap[i].index = i;
+		i = (i-1)/2;
+	    }
+	    heap[i] = state;
+	    state.index = i;
+	}
+
+	private void siftDown(int i) {
+	    ThreadState state = heap[i];
+	    while (2*i+1 < size) {
+		int child = 2*i+1;
+		if (child+1 < size && before(heap[child+1], heap[child]))
+		    child++;
+		if (!before(heap[child], state))
+		    break;
+		heap[i] = heap[child];
+		heap[i].index = i;
+		i = child;
+	    }
+	    heap[i] = state;
+	    state.index = i;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<size; i++)
+		System.out.print(heap[i].thread + "(" + heap[i].pass + ") ");
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+	/** <tt>true</tt> if this is the ready queue, which advances passes. */
+	private boolean readyQueue;
+
+	/** The thread that has access, or <tt>null</tt>. */
+	private ThreadState holder = null;
+	/** The total effective tickets of the waiting threads. */
+	private long totalTickets = 0;
+	/** The tickets currently given to <tt>holder</tt>. */
+	private long donation = 0;
+
+	/** The pass of the thread most recently chosen. */
+	private long lastPass = 0;
+	private long arrivals = 0;
+
+	private ThreadState[] heap = new ThreadState[8];
+	private int size = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its tickets, the tickets transferred
+     * to it, its pass, and the queues it is waiting on.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	long getEffectiveTickets() {
+	    return tickets + received;
+	}
+
+	long getStride() {
+	    return Math.max(stride1 / getEffectiveTickets(), 1);
+	}
+
+	void setTickets(int tickets) {
+	    long change = (long) tickets - this.tickets;
+	    this.tickets = tickets;
+	    changed(change);
+	}
+
+	/**
+	 * Add to the tickets transferred to this thread.
+	 */
+	void receive(long change) {
+	    received += change;
+	    changed(change);
+	}
+
+	/**
+	 * Pass a change in effective tickets on to every queue this thread
+	 * waits on, and so on to their holders.
+	 */
+	private void changed(long change) {
+	    if (change == 0)
+		return;
+
+	    for (StrideQueue queue : waitingOn)
+		queue.adjustTickets(change);
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The tickets of the associated thread. */
+	protected int tickets = priorityDefault;
+	/** Tickets transferred from the queues this thread holds. */
+	protected long received = 0;
+	/** The pass, advanced by the stride each time this thread is chosen. */
+	protected long pass = 0;
+	/** When this thread last started waiting, for breaking ties. */
+	protected long arrival;
+	/** This thread's index in the heap of the queue it waits on. */
+	protected int index;
+	protected HashSet<StrideQueue> waitingOn = new HashSet<StrideQueue>();
+    }
+}
@@ -1,37 +1,85 @@
 package nachos.threads;
 
+import java.util.Collection;
 import java.util.LinkedList;
 import nachos.machine.*;
 import nachos.threads.*;
 
 /**
  * A synchronized queue.
+ *
+ * <p>
+ * The queue is kept in a circular array, so adding an object does not
+ * allocate unless the array has to grow. A queue can be given a capacity, in
+ * which case the array never grows: <tt>add()</tt> waits for room instead,
+ * and <tt>offer()</tt> refuses the object.
  */
 public class SynchList {
     /**
      * Allocate a new synchronized queue.
      */
     public SynchList() {
-	list = new LinkedList<Object>();
+	this(0);
+    }
+
+    /**
+     * Allocate a new synchronized queue that holds at most <i>capacity</i>
+     * objects.
+     *
+     * @param	capacity	the most objects the queue can hold, or 0 if
+     *				there is no limit.
+     */
+    public SynchList(int capacity) {
+	Lib.assertTrue(capacity >= 0);
+
+	this.capacity = capacity;
+	items = new Object[capacity > 0 ? capacity : 8];
 	lock = new Lock();
 	listEmpty = new Condition(lock);
+	listFull = new Condition(lock);
     }
 
     /**
-     * Add the specified object to the end of the queue. If another thread is
-     * waiting in <tt>removeFirst()</tt>, it is woken up.
+     * Add the specified object to the end of the queue, waiting until there
+     * is room if the queue is full. If another thread is waiting in
+     * <tt>removeFirst()</tt>, it is woken up.
      *
      * @param	o	the object to add. Must not be <tt>null</tt>.
      */
     public void add(Object o) {
 	Lib.assertTrue(o != null);
-	
+
 	lock.acquire();
-	list.add(o);
+	while (capacity > 0 && count == capacity)
+	    listFull.sleep();
+	append(o);
 	listEmpty.wake();
 	lock.release();
     }
 
+    /**
+     * Add the specified object to the end of the queue if there is room,
+     * without waiting. If another thread is waiting in
+     * <tt>removeFirst()</tt>, it is woken up.
+     *
+     * @param	o	the object to add. Must not be <tt>null</tt>.
+     * @return	<tt>true</tt> if the object was added, or <tt>false</tt> if
+     *		the queue was full.
+     */
+    public boolean offer(Object o) {
+	Lib.assertTrue(o != null);
+
+	lock.acquire();
+	boolean added = (capacity == 0 || count < capacity);
+	if (added) {
+	    append(o);
+	    listEmpty.wake();
+	}
+	lock.release();
+
+	return added;
+    }
+
     /**
      * Remove an object from the front of the queue, blocking until the queue
      * is non-empty if necessary.
@@ -42,11 +90,74 @@ public class SynchList {
 	Object o;
 
 	lock.acquire();
-	while (list.isEmpty())
+	while (count == 0)
 	    listEmpty.sleep();
-	o = list.removeFirst();
+	o = take();
+	listFull.wake();
+	lock.release();
+
+	return o;
+    }
+
+    /**
+     * Remove an object from the front of the queue if there is one, without
+     * waiting.
+     *
+     * @return	the element removed from the front of the queue, or
+     *		<tt>null</tt> if the queue was empty.
+     */
+    public Object tryRemoveFirst() {
+	Object o = null;
+
+	lock.acquire();
+	if (count > 0) {
+	    o = take();
+	    listFull.wake();
+	}
+	lock.release();
+
+	return o;
+    }
+
+    /**
+     * Remove up to <i>max</i> objects from the front of the queue, in order,
+     * and add them to <i>c</i>, without waiting. The lock is only acquired
+     * once.
+     *
+     * @param	c	the collection to add the objects to.
+     * @param	max	the most objects to remove.
+     * @return	the number of objects removed.
+     */
+    public int drainTo(Collection<Object> c, int max) {
+	lock.acquire();
+	int n = Math.min(count, max);
+	for (int i=0; i<n; i++) {
+	    c.add(take());
+	    listFull.wake();
+	}
 	lock.release();
 
+	return n;
+    }
+
+    private void append(Object o) {
+	if (count == items.length) {
+	    Object[] larger = new Object[items.length*2];
+	    for (int i=0; i<count; i++)
+		larger[i] = items[(head+i) % items.length];
+	    items = larger;
+	    head = 0;
+	}
+
+	items[(head+count) % items.length] = o;
+	count++;
+    }
+
+    private Object take() {
+	Object o = items[head];
+	items[head] = null;
+	head = (head+1) % items.length;
+	count--;
 	return o;
     }
 
@@ -55,7 +166,7 @@ public class SynchList {
 	    this.ping = ping;
 	    this.pong = pong;
 	}
-	
+
 	public void run() {
 	    for (int i=0; i<10; i++)
 		pong.add(ping.removeFirst());
@@ -79,10 +190,37 @@ public class SynchList {
 	    ping.add(o);
 	    Lib.assertTrue(pong.removeFirst() == o);
 	}
+
+	// a bounded queue holds back a producer until it is drained
+	final SynchList bounded = new SynchList(3);
+	final int items = 20;
+	new KThread(new Runnable() {
+		public void run() {
+		    for (int i=0; i<items; i++)
+			bounded.add(new Integer(i));
+		}
+	    }).setName("producer").fork();
+
+	LinkedList<Object> drained = new LinkedList<Object>();
+	while (drained.size() < items) {
+	    if (bounded.drainTo(drained, 2) == 0)
+		KThread.yield();
+	}
+	for (int i=0; i<items; i++)
+	    Lib.assertTrue(((Integer) drained.get(i)).intValue() == i);
+
+	Lib.assertTrue(bounded.tryRemoveFirst() == null);
+	for (int i=0; i<3; i++)
+	    Lib.assertTrue(bounded.offer(new Integer(i)));
+	Lib.assertTrue(!bounded.offer(new Integer(3)));
+	Lib.assertTrue(((Integer) bounded.tryRemoveFirst()).intValue() == 0);
     }
 
-    private LinkedList<Object> list;
+    private Object[] items;
+    private int head = 0, count = 0;
+    /** The most objects the queue can hold, or 0 if there is no limit. */
+    private int capacity;
     private Lock lock;
     private Condition listEmpty;
+    private Condition listFull;
 }
-
@@ -91,6 +91,32 @@ public abstract class ThreadQueue {
      */
     public abstract void acquire(KThread thread);
 
+    /**
+     * Notify this thread queue that access has passed to the specified
+     * thread while other threads may still be waiting, without any of them
+     * receiving it. This is for resources with several holders at once, such
+     * as a lock held by many readers: when the holder that waiting threads
+     * donate priority to lets go, they must donate to another holder instead.
+     *
+     * <p>
+     * By default this is the same as <tt>acquire()</tt>.
+     *
+     * @param	thread	the thread that now has access.
+     */
+    public void handOff(KThread thread) {
+	acquire(thread);
+    }
+
+    /**
+     * Remove the specified thread from this queue without giving it access,
+     * because it has stopped waiting (for example, after a timeout). If the
+     * queue transfers priority, the thread's donation is withdrawn.
+     *
+     * @param	thread	the thread to remove.
+     * @return	<tt>true</tt> if the thread was waiting on this queue.
+     */
+    public abstract boolean remove(KThread thread);
+
     /**
      * Print out all the threads waiting for access, in no particular order.
      */
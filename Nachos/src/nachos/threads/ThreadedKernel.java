@@ -48,7 +48,17 @@ public class ThreadedKernel extends Kernel {
     public void selfTest() {
 	KThread.selfTest();
 	Semaphore.selfTest();
+	Lock.selfTest();
+	Condition2.selfTest();
 	SynchList.selfTest();
+	Communicator.selfTest();
+	ReadWriteLock.selfTest();
+	TicketLock.selfTest();
+	CountDownLatch.selfTest();
+	Barrier.selfTest();
+	Phaser.selfTest();
+	Alarm.selfTest();
+	scheduler.selfTest();
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
 	}
@@ -83,4 +93,12 @@ public class ThreadedKernel extends Kernel {
     private static Communicator dummy5 = null;
     private static Rider dummy6 = null;
     private static ElevatorController dummy7 = null;
+    private static StrideScheduler dummy8 = null;
+    private static MLFQScheduler dummy9 = null;
+    private static EDFScheduler dummy10 = null;
+    private static ReadWriteLock dummy11 = null;
+    private static TicketLock dummy12 = null;
+    private static CountDownLatch dummy13 = null;
+    private static Barrier dummy14 = null;
+    private static Phaser dummy15 = null;
 }
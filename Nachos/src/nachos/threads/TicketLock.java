@@ -0,0 +1,123 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayDeque;
+
+/**
+ * A <tt>TicketLock</tt> is a lock that is handed to waiting threads strictly
+ * in the order they asked for it, whatever the scheduler. Each thread that
+ * finds the lock busy takes the next ticket and waits for it to be served;
+ * <tt>release()</tt> serves the next ticket.
+ *
+ * <p>
+ * The waiting threads are also kept on a wait queue that transfers priority,
+ * so they still donate to the holder, but the queue is never asked to choose
+ * the next holder: the served thread is taken out of it with
+ * <tt>remove()</tt> and handed access with <tt>handOff()</tt> instead.
+ */
+public class TicketLock {
+    /**
+     * Allocate a new ticket lock. The lock will initially be free.
+     */
+    public TicketLock() {
+    }
+
+    /**
+     * Atomically acquire this lock, after every thread that is already
+     * waiting for it. The current thread must not already hold this lock.
+     */
+    public void acquire() {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (lockHolder != null) {
+	    tickets.addLast(thread);
+	    waitQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+	else {
+	    waitQueue.acquire(thread);
+	    lockHolder = thread;
+	}
+
+	Lib.assertTrue(lockHolder == thread);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock, handing it to the thread that has been
+     * waiting longest.
+     */
+    public void release() {
+	Lib.assertTrue(isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	lockHolder = tickets.pollFirst();
+	if (lockHolder != null) {
+	    Lib.assertTrue(waitQueue.remove(lockHolder));
+	    waitQueue.handOff(lockHolder);
+	    lockHolder.ready();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if the current thread holds this lock.
+     *
+     * @return	true if the current thread holds this lock.
+     */
+    public boolean isHeldByCurrentThread() {
+	return (lockHolder == KThread.currentThread());
+    }
+
+    /**
+     * Tests that waiters get the lock in the order they asked for it, even
+     * when later ones have a higher priority.
+     */
+    public static void selfTest() {
+	final TicketLock lock = new TicketLock();
+	final int waiters = 5;
+	final int[] arrived = new int[waiters], served = new int[waiters];
+	final int[] counts = new int[2];
+	final Semaphore arriving = new Semaphore(0), done = new Semaphore(0);
+
+	lock.acquire();
+	for (int i=0; i<waiters; i++) {
+	    final int id = i;
+	    new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<id; j++)
+			    ThreadedKernel.scheduler.increasePriority();
+
+			arriving.V();
+			// nothing can run between here and taking a ticket
+			arrived[counts[0]++] = id;
+			lock.acquire();
+			served[counts[1]++] = id;
+			lock.release();
+			done.V();
+		    }
+		}).setName("ticket " + i).fork();
+	}
+	for (int i=0; i<waiters; i++)
+	    arriving.P();
+	lock.release();
+
+	for (int i=0; i<waiters; i++)
+	    done.P();
+	for (int i=0; i<waiters; i++)
+	    Lib.assertTrue(served[i] == arrived[i]);
+    }
+
+    private KThread lockHolder = null;
+    /** The waiting threads, in the order they took their tickets. */
+    private ArrayDeque<KThread> tickets = new ArrayDeque<KThread>();
+    private ThreadQueue waitQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+}
@@ -4,6 +4,9 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
+import java.util.Arrays;
+import java.util.HashMap;
+
 /**
  * A kernel that can support multiple user processes.
  */
@@ -16,13 +19,24 @@ public class UserKernel extends ThreadedKernel {
     }
 
     /**
-     * Initialize this kernel. Creates a synchronized console and sets the
-     * processor's exception handler.
+     * Initialize this kernel. Creates a synchronized console, marks every
+     * frame of physical memory free, and sets the processor's exception
+     * handler.
      */
     public void initialize(String[] args) {
 	super.initialize(args);
 
 	console = new SynchConsole(Machine.console());
+
+	// stacked so that frames are handed out from 0 up
+	int numPhysPages = Machine.processor().getNumPhysPages();
+	freeFrames = new int[numPhysPages];
+	for (int i=0; i<numPhysPages; i++)
+	    freeFrames[i] = numPhysPages-1 - i;
+	numFreeFrames = numPhysPages;
+	frameReferences = new int[numPhysPages];
+	frameTextKeys = new String[numPhysPages];
+	frameTextVPNs = new int[numPhysPages];
 	
 	Machine.processor().setExceptionHandler(new Runnable() {
 		public void run() { exceptionHandler(); }
@@ -61,6 +75,144 @@ public class UserKernel extends ThreadedKernel {
 	return ((UThread) KThread.currentThread()).process;
     }
 
+    /**
+     * Allocate a free frame of physical memory, with one reference to it.
+     *
+     * @return	the physical page number of the frame, or -1 if there are no
+     *		free frames.
+     */
+    public static int allocateFrame() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int ppn = -1;
+	if (numFreeFrames > 0) {
+	    ppn = freeFrames[--numFreeFrames];
+	    frameReferences[ppn] = 1;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return ppn;
+    }
+
+    /**
+     * Add a reference to a frame, so that it is shared by one more page.
+     *
+     * @param	ppn	the physical page number of the frame.
+     */
+    public static void shareFrame(int ppn) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(frameReferences[ppn] > 0);
+	frameReferences[ppn]++;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Drop a reference to a frame allocated by <tt>allocateFrame()</tt>, and
+     * return it to the free list if that was the last one.
+     *
+     * @param	ppn	the physical page number of the frame.
+     * @return	<tt>true</tt> if the frame is now free.
+     */
+    public static boolean freeFrame(int ppn) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(ppn >= 0 && ppn < freeFrames.length &&
+		       frameReferences[ppn] > 0);
+
+	boolean free = (--frameReferences[ppn] == 0);
+	if (free) {
+	    if (frameTextKeys[ppn] != null)
+		uncacheTextFrame(ppn);
+	    freeFrames[numFreeFrames++] = ppn;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return free;
+    }
+
+    /**
+     * Look for a frame that already holds a read-only page of an executable,
+     * loaded by another process running the same executable. The caller must
+     * add its own reference to the frame before it can be freed, for example
+     * with <tt>shareFrame()</tt>.
+     *
+     * @param	key	identifies the executable.
+     * @param	vpn	the virtual page number of the page.
+     * @return	the frame's physical page number, or -1 if the page is not in
+     *		memory.
+     */
+    public static int findTextFrame(String key, int vpn) {
+	int[] frames = textFrames.get(key);
+	if (frames == null || vpn >= frames.length)
+	    return -1;
+
+	return frames[vpn];
+    }
+
+    /**
+     * Record that a frame holds a read-only page of an executable, so that
+     * other processes running it can share the frame. The frame is forgotten
+     * when it is freed. Does nothing if the page is already cached in another
+     * frame.
+     *
+     * @param	key	identifies the executable.
+     * @param	vpn	the virtual page number of the page.
+     * @param	ppn	the frame holding the page.
+     */
+    public static void cacheTextFrame(String key, int vpn, int ppn) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(frameReferences[ppn] > 0 && frameTextKeys[ppn] == null);
+
+	int[] frames = textFrames.get(key);
+	if (frames == null || vpn >= frames.length) {
+	    int[] grown = new int[vpn+1];
+	    Arrays.fill(grown, -1);
+	    if (frames != null)
+		System.arraycopy(frames, 0, grown, 0, frames.length);
+	    textFrames.put(key, frames = grown);
+	}
+
+	if (frames[vpn] < 0) {
+	    frames[vpn] = ppn;
+	    frameTextKeys[ppn] = key;
+	    frameTextVPNs[ppn] = vpn;
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Forget the executable page a frame being freed held.
+     */
+    private static void uncacheTextFrame(int ppn) {
+	int[] frames = textFrames.get(frameTextKeys[ppn]);
+	frames[frameTextVPNs[ppn]] = -1;
+
+	frameTextKeys[ppn] = null;
+    }
+
+    /**
+     * Return the number of pages sharing a frame.
+     *
+     * @param	ppn	the physical page number of the frame.
+     * @return	the number of references to the frame, or 0 if it is free.
+     */
+    public static int getFrameReferences(int ppn) {
+	return frameReferences[ppn];
+    }
+
+    /**
+     * Return the number of frames that are not allocated.
+     *
+     * @return	the number of free frames.
+     */
+    public static int getNumFreeFrames() {
+	return numFreeFrames;
+    }
+
     /**
      * The exception handler. This handler is called by the processor whenever
      * a user instruction causes a processor exception.
@@ -110,6 +262,22 @@ public class UserKernel extends ThreadedKernel {
     /** Globally accessible reference to the synchronized console. */
     public static SynchConsole console;
 
+    /** A stack of the physical page numbers of the free frames. */
+    private static int[] freeFrames;
+    private static int numFreeFrames;
+    /** The number of pages sharing each frame. */
+    private static int[] frameReferences;
+
+    /**
+     * The frames holding read-only executable pages, by executable and
+     * virtual page number, with -1 for pages that are not in memory.
+     */
+    private static HashMap<String, int[]> textFrames =
+	new HashMap<String, int[]>();
+    /** The executable and page each frame holds, if it is in the cache. */
+    private static String[] frameTextKeys;
+    private static int[] frameTextVPNs;
+
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
 }
@@ -5,6 +5,8 @@ import nachos.threads.*;
 import nachos.userprog.*;
 
 import java.io.EOFException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
 
 /**
  * Encapsulates the state of a user process that is not contained in its
@@ -12,6 +14,28 @@ import java.io.EOFException;
  * file table, and information about the program being executed.
  *
  * <p>
+ * Pages are loaded on demand. A page gets a frame from
+ * <tt>UserKernel.allocateFrame()</tt> the first time it is touched, either by
+ * the program (through a page fault) or by the kernel copying to or from
+ * virtual memory. The frame is filled from the executable if the page belongs
+ * to a COFF section, and zeroed if it is a stack or argument page.
+ *
+ * <p>
+ * A process created by <tt>fork()</tt> shares its parent's frames instead of
+ * copying them. Both page tables map the shared pages read-only and mark them
+ * copy-on-write; the first write by either process takes an
+ * <tt>exceptionReadOnly</tt>, and the writer then gets a private copy of the
+ * page. <tt>UserKernel</tt> counts the pages sharing each frame, so the last
+ * process left using a frame just makes its page writable again.
+ *
+ * <p>
+ * Pages of read-only COFF sections are shared the same way between all the
+ * processes running an executable: the first process to touch such a page
+ * loads it and caches its frame in <tt>UserKernel</tt>, and the others map
+ * that frame instead of loading the page again, for as long as it is in
+ * memory.
+ *
+ * <p>
  * This class is extended by other classes to support additional functionality
  * (such as additional syscalls).
  *
@@ -23,10 +47,9 @@ public class UserProcess {
      * Allocate a new process.
      */
     public UserProcess() {
-	int numPhysPages = Machine.processor().getNumPhysPages();
-	pageTable = new TranslationEntry[numPhysPages];
-	for (int i=0; i<numPhysPages; i++)
-	    pageTable[i] = new TranslationEntry(i,i, true,false,false,false);
+	boolean intStatus = Machine.interrupt().disable();
+	processID = nextProcessID++;
+	Machine.interrupt().restore(intStatus);
     }
     
     /**
@@ -132,13 +155,26 @@ public class UserProcess {
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
 	byte[] memory = Machine.processor().getMemory();
-	
-	// for now, just assume that virtual addresses equal physical addresses
-	if (vaddr < 0 || vaddr >= memory.length)
-	    return 0;
 
-	int amount = Math.min(length, memory.length-vaddr);
-	System.arraycopy(memory, vaddr, data, offset, amount);
+	int amount = 0;
+	while (amount < length) {
+	    // keep the page from being evicted before it is copied
+	    boolean intStatus = Machine.interrupt().disable();
+
+	    TranslationEntry entry = getPage(vaddr + amount, false);
+	    if (entry == null) {
+		Machine.interrupt().restore(intStatus);
+		break;
+	    }
+
+	    int pageOffset = Processor.offsetFromAddress(vaddr + amount);
+	    int n = Math.min(length - amount, pageSize - pageOffset);
+	    System.arraycopy(memory, entry.ppn*pageSize + pageOffset,
+			     data, offset + amount, n);
+	    amount += n;
+
+	    Machine.interrupt().restore(intStatus);
+	}
 
 	return amount;
     }
@@ -175,17 +211,57 @@ public class UserProcess {
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
 	byte[] memory = Machine.processor().getMemory();
-	
-	// for now, just assume that virtual addresses equal physical addresses
-	if (vaddr < 0 || vaddr >= memory.length)
-	    return 0;
 
-	int amount = Math.min(length, memory.length-vaddr);
-	System.arraycopy(data, offset, memory, vaddr, amount);
+	int amount = 0;
+	while (amount < length) {
+	    // keep the page from being evicted before it is copied
+	    boolean intStatus = Machine.interrupt().disable();
+
+	    TranslationEntry entry = getPage(vaddr + amount, true);
+	    if (entry == null) {
+		Machine.interrupt().restore(intStatus);
+		break;
+	    }
+
+	    int pageOffset = Processor.offsetFromAddress(vaddr + amount);
+	    int n = Math.min(length - amount, pageSize - pageOffset);
+	    System.arraycopy(data, offset + amount,
+			     memory, entry.ppn*pageSize + pageOffset, n);
+	    amount += n;
+
+	    Machine.interrupt().restore(intStatus);
+	}
 
 	return amount;
     }
 
+    /**
+     * Return the page table entry for the specified virtual address, loading
+     * the page first if necessary, and mark it used (and dirty, if it is to be
+     * written).
+     *
+     * @param	vaddr	the virtual address.
+     * @param	write	<tt>true</tt> if the page is about to be written.
+     * @return	the entry, or <tt>null</tt> if the address is not mapped, or
+     *		the page is read-only and <tt>write</tt> is <tt>true</tt>.
+     */
+    protected TranslationEntry getPage(int vaddr, boolean write) {
+	int vpn = Processor.pageFromAddress(vaddr);
+	if (pageTable == null || vpn >= numPages || !handlePageFault(vpn))
+	    return null;
+
+	TranslationEntry entry = pageTable[vpn];
+	if (write && entry.readOnly) {
+	    if (!copyOnWrite[vpn] || !handleCopyOnWrite(vpn))
+		return null;
+	}
+
+	entry.used = true;
+	if (write)
+	    entry.dirty = true;
+	return entry;
+    }
+
     /**
      * Load the executable with the specified name into this process, and
      * prepare to pass it the specified arguments. Opens the executable, reads
@@ -199,20 +275,8 @@ public class UserProcess {
     private boolean load(String name, String[] args) {
 	Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 	
-	OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
-	if (executable == null) {
-	    Lib.debug(dbgProcess, "\topen failed");
-	    return false;
-	}
-
-	try {
-	    coff = new Coff(executable);
-	}
-	catch (EOFException e) {
-	    executable.close();
-	    Lib.debug(dbgProcess, "\tcoff load failed");
+	if (!openExecutable(name))
 	    return false;
-	}
 
 	// make sure the sections are contiguous and start at page 0
 	numPages = 0;
@@ -250,6 +314,8 @@ public class UserProcess {
 	// and finally reserve 1 page for arguments
 	numPages++;
 
+	createPageTable();
+
 	if (!loadSections())
 	    return false;
 
@@ -275,42 +341,313 @@ public class UserProcess {
     }
 
     /**
-     * Allocates memory for this process, and loads the COFF sections into
-     * memory. If this returns successfully, the process will definitely be
-     * run (this is the last step in process initialization that can fail).
+     * Open the specified executable as this process's COFF file.
      *
-     * @return	<tt>true</tt> if the sections were successfully loaded.
+     * @param	name	the name of the file containing the executable.
+     * @return	<tt>true</tt> if the executable was opened.
+     */
+    private boolean openExecutable(String name) {
+	OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
+	if (executable == null) {
+	    Lib.debug(dbgProcess, "\topen failed");
+	    return false;
+	}
+
+	try {
+	    coff = new Coff(executable);
+	}
+	catch (EOFException e) {
+	    executable.close();
+	    Lib.debug(dbgProcess, "\tcoff load failed");
+	    return false;
+	}
+
+	// a file replaced under the same name must not share the old pages
+	byte[] contents = Lib.loadFile(executable);
+	if (contents == null) {
+	    coff.close();
+	    Lib.debug(dbgProcess, "\tcoff load failed");
+	    return false;
+	}
+	CRC32 checksum = new CRC32();
+	checksum.update(contents);
+
+	executableName = name;
+	executableKey = name + ":" + contents.length + ":" +
+	    Long.toHexString(checksum.getValue());
+	return true;
+    }
+
+    /**
+     * Create a page table of <tt>numPages</tt> invalid entries.
+     */
+    private void createPageTable() {
+	pageTable = new TranslationEntry[numPages];
+	for (int vpn=0; vpn<numPages; vpn++)
+	    pageTable[vpn] = new TranslationEntry(vpn, -1, false, false,
+						  false, false);
+	copyOnWrite = new boolean[numPages];
+    }
+
+    /**
+     * Make this process a copy of the specified process, sharing its loaded
+     * pages copy-on-write. The pages the parent has not loaded yet are loaded
+     * by this process itself when it touches them. The registers are set up by
+     * the caller.
+     *
+     * @param	parent	the process to copy.
+     * @return	<tt>true</tt> if successful.
+     */
+    protected boolean forkFrom(UserProcess parent) {
+	Lib.debug(dbgProcess, "UserProcess.forkFrom(" + parent.processID + ")");
+
+	// the executable is opened again, but no pages are read from it here
+	if (!openExecutable(parent.executableName))
+	    return false;
+
+	numPages = parent.numPages;
+	createPageTable();
+
+	if (!loadSections())
+	    return false;
+
+	for (int vpn=0; vpn<numPages; vpn++)
+	    parent.sharePage(this, vpn);
+
+	return true;
+    }
+
+    /**
+     * Map a page of this process into the same place in a child's address
+     * space, copy-on-write unless the page is read-only anyway.
+     *
+     * @param	child	the process created by <tt>fork()</tt>.
+     * @param	vpn	the virtual page number.
+     */
+    protected void sharePage(UserProcess child, int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	if (!entry.valid)
+	    return;
+
+	if (!entry.readOnly) {
+	    entry.readOnly = true;
+	    copyOnWrite[vpn] = true;
+	}
+
+	child.shareFrame(entry.ppn, vpn);
+	child.pageTable[vpn] = new TranslationEntry(entry);
+	child.copyOnWrite[vpn] = copyOnWrite[vpn];
+    }
+
+    /**
+     * Give a copy-on-write page its own frame, so that it can be written.
+     * Called when this process writes to a page marked copy-on-write, which
+     * must be valid.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	<tt>true</tt> if the page is now writable, or <tt>false</tt> if
+     *		no frame could be found for it.
+     */
+    protected boolean handleCopyOnWrite(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	Lib.assertTrue(copyOnWrite[vpn] && entry.valid);
+
+	// the other processes sharing the frame may have copied it already
+	if (UserKernel.getFrameReferences(entry.ppn) > 1) {
+	    int ppn = allocateFrame(vpn);
+	    if (ppn < 0) {
+		Lib.debug(dbgProcess, "\tout of physical memory");
+		return false;
+	    }
+
+	    if (entry.valid) {
+		byte[] memory = Machine.processor().getMemory();
+		System.arraycopy(memory, entry.ppn*pageSize,
+				 memory, ppn*pageSize, pageSize);
+		freeFrame(entry.ppn);
+	    }
+	    else {
+		// the shared frame was evicted to make room for the copy
+		loadPage(vpn, ppn);
+	    }
+
+	    entry.ppn = ppn;
+	    entry.valid = true;
+	    entry.used = true;
+	}
+
+	// the write is about to happen, and the page no longer matches what
+	// would be loaded for it
+	entry.readOnly = false;
+	entry.dirty = true;
+	copyOnWrite[vpn] = false;
+	return true;
+    }
+
+    /**
+     * Prepares this process's memory. The COFF sections are not loaded
+     * here, but page by page as they are touched. If this returns
+     * successfully, the process will definitely be run (this is the last step
+     * in process initialization that can fail).
+     *
+     * @return	<tt>true</tt> if the process fits in memory.
      */
     protected boolean loadSections() {
+	// without page replacement, every page may need a frame at once
 	if (numPages > Machine.processor().getNumPhysPages()) {
 	    coff.close();
 	    Lib.debug(dbgProcess, "\tinsufficient physical memory");
 	    return false;
 	}
 
-	// load sections
 	for (int s=0; s<coff.getNumSections(); s++) {
 	    CoffSection section = coff.getSection(s);
 	    
 	    Lib.debug(dbgProcess, "\tinitializing " + section.getName()
-		      + " section (" + section.getLength() + " pages)");
-
-	    for (int i=0; i<section.getLength(); i++) {
-		int vpn = section.getFirstVPN()+i;
-
-		// for now, just assume virtual addresses=physical addresses
-		section.loadPage(i, vpn);
-	    }
+		      + " section (" + section.getLength()
+		      + " pages, loaded on demand)");
 	}
 	
 	return true;
     }
 
     /**
-     * Release any resources allocated by <tt>loadSections()</tt>.
+     * Release any resources allocated by <tt>loadSections()</tt> and by
+     * loading pages.
      */
     protected void unloadSections() {
-    }    
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    TranslationEntry entry = pageTable[vpn];
+	    if (entry.valid) {
+		entry.valid = false;
+		freeFrame(entry.ppn);
+	    }
+	}
+
+	coff.close();
+    }
+
+    /**
+     * Make sure the specified page is in memory, loading it if it is not.
+     * Called on a page fault, and whenever the kernel touches a page.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	<tt>true</tt> if the page is now valid, or <tt>false</tt> if
+     *		no frame could be found for it.
+     */
+    protected boolean handlePageFault(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	if (entry.valid)
+	    return true;
+
+	CoffSection section = getSection(vpn);
+	boolean text = (section != null && section.isReadOnly());
+
+	int ppn = text ? UserKernel.findTextFrame(executableKey, vpn) : -1;
+	if (ppn >= 0) {
+	    Lib.debug(dbgProcess, "\tsharing page " + vpn + " of "
+		      + executableName);
+	    shareFrame(ppn, vpn);
+
+	    entry.ppn = ppn;
+	    entry.valid = true;
+	    entry.readOnly = true;
+	    entry.used = true;
+	    entry.dirty = false;
+	    return true;
+	}
+
+	ppn = allocateFrame(vpn);
+	if (ppn < 0) {
+	    Lib.debug(dbgProcess, "\tout of physical memory");
+	    return false;
+	}
+
+	loadPage(vpn, ppn);
+	if (text)
+	    UserKernel.cacheTextFrame(executableKey, vpn, ppn);
+
+	// a copy-on-write page that was evicted comes back as a private copy
+	if (copyOnWrite[vpn]) {
+	    copyOnWrite[vpn] = false;
+	    entry.readOnly = false;
+	}
+
+	entry.ppn = ppn;
+	// the page is loaded because it is about to be touched
+	entry.valid = true;
+	entry.used = true;
+	entry.dirty = false;
+	return true;
+    }
+
+    /**
+     * Fill the specified frame with the initial contents of a page: from the
+     * executable if the page is part of a COFF section, otherwise zeros.
+     * Also sets whether the page is read-only.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	ppn	the frame to fill.
+     */
+    protected void loadPage(int vpn, int ppn) {
+	CoffSection section = getSection(vpn);
+	if (section != null) {
+	    section.loadPage(vpn - section.getFirstVPN(), ppn);
+	    pageTable[vpn].readOnly = section.isReadOnly();
+	}
+	else {
+	    byte[] memory = Machine.processor().getMemory();
+	    Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+	    pageTable[vpn].readOnly = false;
+	}
+    }
+
+    /**
+     * Return the COFF section the specified page belongs to.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the section, or <tt>null</tt> for a stack or argument page.
+     */
+    protected CoffSection getSection(int vpn) {
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    if (vpn >= section.getFirstVPN() &&
+		vpn < section.getFirstVPN() + section.getLength())
+		return section;
+	}
+
+	return null;
+    }
+
+    /**
+     * Return a free frame of physical memory for this process.
+     *
+     * @param	vpn	the virtual page the frame will hold.
+     * @return	the frame's physical page number, or -1 if there is none.
+     */
+    protected int allocateFrame(int vpn) {
+	return UserKernel.allocateFrame();
+    }
+
+    /**
+     * Give back a frame this process no longer uses.
+     *
+     * @param	ppn	the frame's physical page number.
+     */
+    protected void freeFrame(int ppn) {
+	UserKernel.freeFrame(ppn);
+    }
+
+    /**
+     * Start sharing a frame with another process, which maps it at the same
+     * virtual page.
+     *
+     * @param	ppn	the frame's physical page number.
+     * @param	vpn	the virtual page that maps it in both processes.
+     */
+    protected void shareFrame(int ppn, int vpn) {
+	UserKernel.shareFrame(ppn);
+    }
 
     /**
      * Initialize the processor's registers in preparation for running the
@@ -322,6 +659,13 @@ public class UserProcess {
     public void initRegisters() {
 	Processor processor = Machine.processor();
 
+	// a forked process starts with its parent's registers
+	if (forkRegisters != null) {
+	    for (int i=0; i<Processor.numUserRegisters; i++)
+		processor.writeRegister(i, forkRegisters[i]);
+	    return;
+	}
+
 	// by default, everything's 0
 	for (int i=0; i<processor.numUserRegisters; i++)
 	    processor.writeRegister(i, 0);
@@ -340,12 +684,37 @@ public class UserProcess {
      */
     private int handleHalt() {
 
-	Machine.halt();
+	// let the kernel clean up (e.g. remove its swap file) before halting
+	Kernel.kernel.terminate();
 	
 	Lib.assertNotReached("Machine.halt() did not halt machine!");
 	return 0;
     }
 
+    /**
+     * Handle the fork() system call.
+     */
+    private int handleFork() {
+	UserProcess child = UserProcess.newUserProcess();
+	if (!child.forkFrom(this))
+	    return -1;
+
+	Processor processor = Machine.processor();
+	int[] registers = new int[Processor.numUserRegisters];
+	for (int i=0; i<registers.length; i++)
+	    registers[i] = processor.readRegister(i);
+
+	// the child returns 0 from the syscall, like advancePC() would
+	registers[Processor.regV0] = 0;
+	registers[Processor.regPC] = registers[Processor.regNextPC];
+	registers[Processor.regNextPC] += 4;
+	child.forkRegisters = registers;
+
+	new UThread(child).setName(executableName).fork();
+
+	return child.processID;
+    }
+
 
     private static final int
         syscallHalt = 0,
@@ -357,7 +726,8 @@ public class UserProcess {
 	syscallRead = 6,
 	syscallWrite = 7,
 	syscallClose = 8,
-	syscallUnlink = 9;
+	syscallUnlink = 9,
+	syscallFork = 13;
 
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -378,6 +748,7 @@ public class UserProcess {
      *								</tt></td></tr>
      * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
      * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+     * <tr><td>13</td><td><tt>int  fork();</tt></td></tr>
      * </table>
      * 
      * @param	syscall	the syscall number.
@@ -391,6 +762,8 @@ public class UserProcess {
 	switch (syscall) {
 	case syscallHalt:
 	    return handleHalt();
+	case syscallFork:
+	    return handleFork();
 
 
 	default:
@@ -422,6 +795,26 @@ public class UserProcess {
 	    processor.writeRegister(Processor.regV0, result);
 	    processor.advancePC();
 	    break;				       
+
+	case Processor.exceptionPageFault:
+	    // the faulting instruction is restarted once the page is loaded
+	    int vpn = Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+	    if (vpn < numPages && handlePageFault(vpn))
+		break;
+
+	    Lib.debug(dbgProcess, "Unhandled page fault at page " + vpn);
+	    Lib.assertNotReached("Unhandled page fault");
+	    break;
+
+	case Processor.exceptionReadOnly:
+	    // the faulting instruction is restarted once the page is copied
+	    vpn = Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+	    if (vpn < numPages && copyOnWrite[vpn] && handleCopyOnWrite(vpn))
+		break;
+
+	    Lib.debug(dbgProcess, "Write to read-only page " + vpn);
+	    Lib.assertNotReached("Write to read-only page");
+	    break;
 				       
 	default:
 	    Lib.debug(dbgProcess, "Unexpected exception: " +
@@ -435,6 +828,8 @@ public class UserProcess {
 
     /** This process's page table. */
     protected TranslationEntry[] pageTable;
+    /** Which pages are shared read-only until one of their users writes. */
+    protected boolean[] copyOnWrite;
     /** The number of contiguous pages occupied by the program. */
     protected int numPages;
 
@@ -443,6 +838,19 @@ public class UserProcess {
     
     private int initialPC, initialSP;
     private int argc, argv;
+
+    /** This process's unique ID. */
+    protected int processID;
+    private static int nextProcessID = 0;
+    /** The name of the file containing the executable. */
+    private String executableName;
+    /**
+     * Identifies the executable, by name and contents, in
+     * <tt>UserKernel</tt>'s page cache.
+     */
+    private String executableKey;
+    /** The registers a forked process starts with, or <tt>null</tt>. */
+    private int[] forkRegisters = null;
 	
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
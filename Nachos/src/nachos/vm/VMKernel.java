@@ -5,8 +5,29 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
 /**
  * A kernel that can support multiple demand-paging user processes.
+ *
+ * <p>
+ * Physical memory can be overcommitted. When no frame is free, one is taken
+ * from a resident page, chosen by the clock (second chance) algorithm: an
+ * inverted page table records which page of which process each frame holds,
+ * and a hand sweeps over it, clearing the <tt>used</tt> bit of each page it
+ * passes and evicting the first page whose bit is already clear. An evicted
+ * page that is dirty is written to a swap file, opened through
+ * <tt>ThreadedKernel.fileSystem</tt> the first time it is needed; a free
+ * map with one bit per page-sized slot tracks which parts of the swap file
+ * are in use.
+ *
+ * <p>
+ * A frame can be shared by several processes, for example after a
+ * <tt>fork()</tt>, but always at the same virtual page number. The inverted
+ * page table therefore keeps one page number and a list of owners per frame.
+ * The clock treats the frame as used if any owner has used it, and evicting
+ * it evicts the page from every owner.
  */
 public class VMKernel extends UserKernel {
     /**
@@ -21,11 +42,21 @@ public class VMKernel extends UserKernel {
      */
     public void initialize(String[] args) {
 	super.initialize(args);
+
+	int numPhysPages = Machine.processor().getNumPhysPages();
+	frameOwners = newOwnerLists(numPhysPages);
+	frameVPNs = new int[numPhysPages];
+	clockHand = 0;
+
+	swapMap = new long[1];
+	swapFileName = Config.getString("VMKernel.swapFile", "nachos.swp");
+
+	pagingLock = new Lock();
     }
 
     /**
      * Test this kernel.
-     */	
+     */
     public void selfTest() {
 	super.selfTest();
     }
@@ -36,16 +67,219 @@ public class VMKernel extends UserKernel {
     public void run() {
 	super.run();
     }
-    
+
     /**
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	if (swapFile != null) {
+	    swapFile.close();
+	    ThreadedKernel.fileSystem.remove(swapFileName);
+	}
+
 	super.terminate();
     }
 
+    /**
+     * Find a frame for the specified page, evicting another page if no frame
+     * is free. The caller must hold <tt>pagingLock</tt>.
+     *
+     * @param	process	the process the page belongs to, which need not be
+     *			the one running.
+     * @param	vpn	the virtual page number.
+     * @return	the frame's physical page number.
+     */
+    static int allocateFrame(VMProcess process, int vpn) {
+	Lib.assertTrue(pagingLock.isHeldByCurrentThread());
+
+	int ppn;
+	while ((ppn = UserKernel.allocateFrame()) < 0)
+	    evict((VMProcess) UserKernel.currentProcess());
+
+	Lib.assertTrue(frameOwners[ppn].isEmpty());
+	frameOwners[ppn].add(process);
+	frameVPNs[ppn] = vpn;
+	return ppn;
+    }
+
+    /**
+     * Add a process to the owners of a frame, which it maps at the same
+     * virtual page as the others. The caller must hold <tt>pagingLock</tt>.
+     *
+     * @param	ppn	the frame's physical page number.
+     * @param	process	the process that now shares the frame.
+     * @param	vpn	the virtual page number.
+     */
+    static void shareFrame(int ppn, VMProcess process, int vpn) {
+	Lib.assertTrue(pagingLock.isHeldByCurrentThread());
+	Lib.assertTrue(frameVPNs[ppn] == vpn && !frameOwners[ppn].isEmpty());
+
+	frameOwners[ppn].add(process);
+	UserKernel.shareFrame(ppn);
+    }
+
+    /**
+     * Remove a process from the owners of a frame, freeing the frame if it was
+     * the last one. The caller must hold <tt>pagingLock</tt>.
+     *
+     * @param	ppn	the frame's physical page number.
+     * @param	process	the process that no longer uses the frame.
+     */
+    static void releaseFrame(int ppn, VMProcess process) {
+	Lib.assertTrue(pagingLock.isHeldByCurrentThread());
+
+	Lib.assertTrue(frameOwners[ppn].remove(process));
+	UserKernel.freeFrame(ppn);
+    }
+
+    /**
+     * Advance the clock hand to a page that has not been used since the hand
+     * last passed it, and evict that page, freeing its frame.
+     *
+     * @param	current	the process that is running, whose pages may be in
+     *			the TLB, or <tt>null</tt> if no process is.
+     */
+    private static void evict(VMProcess current) {
+	for (;;) {
+	    int ppn = clockHand;
+	    clockHand = (clockHand+1) % frameOwners.length;
+
+	    ArrayList<VMProcess> owners = frameOwners[ppn];
+	    if (owners.isEmpty())
+		continue;
+
+	    int vpn = frameVPNs[ppn];
+	    boolean used = false;
+	    for (VMProcess owner : owners) {
+		TranslationEntry entry = owner.getEntry(vpn);
+		used |= entry.used;
+		entry.used = false;
+	    }
+	    if (used)
+		continue;
+
+	    // invalidate every mapping before any is written out
+	    for (VMProcess owner : owners)
+		owner.getEntry(vpn).valid = false;
+
+	    while (!owners.isEmpty()) {
+		VMProcess owner = owners.remove(owners.size()-1);
+		owner.evict(vpn, owner == current);
+		UserKernel.freeFrame(ppn);
+	    }
+	    return;
+	}
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ArrayList<VMProcess>[] newOwnerLists(int numPhysPages) {
+	ArrayList<VMProcess>[] lists = new ArrayList[numPhysPages];
+	for (int i=0; i<numPhysPages; i++)
+	    lists[i] = new ArrayList<VMProcess>(1);
+	return lists;
+    }
+
+    /**
+     * Reserve a page-sized slot in the swap file. The caller must hold
+     * <tt>pagingLock</tt>.
+     *
+     * @return	the slot number.
+     */
+    static int allocateSwapSlot() {
+	int word = 0;
+	while (word < swapMap.length && swapMap[word] == -1L)
+	    word++;
+
+	if (word == swapMap.length)
+	    swapMap = Arrays.copyOf(swapMap, swapMap.length*2);
+
+	int bit = Long.numberOfTrailingZeros(~swapMap[word]);
+	swapMap[word] |= 1L << bit;
+	return word*64 + bit;
+    }
+
+    /**
+     * Release a slot reserved by <tt>allocateSwapSlot()</tt>. The caller must
+     * hold <tt>pagingLock</tt>.
+     *
+     * @param	slot	the slot number.
+     */
+    static void freeSwapSlot(int slot) {
+	Lib.assertTrue((swapMap[slot/64] & (1L << (slot%64))) != 0);
+	swapMap[slot/64] &= ~(1L << (slot%64));
+    }
+
+    /**
+     * Copy a frame to a slot in the swap file. The caller must hold
+     * <tt>pagingLock</tt>.
+     *
+     * @param	slot	the slot to write.
+     * @param	ppn	the frame to copy.
+     */
+    static void swapOut(int slot, int ppn) {
+	if (swapFile == null) {
+	    Lib.assertTrue(ThreadedKernel.fileSystem != null);
+	    swapFile = ThreadedKernel.fileSystem.open(swapFileName, true);
+	    Lib.assertTrue(swapFile != null, "cannot open swap file");
+	}
+
+	byte[] memory = Machine.processor().getMemory();
+	int written = swapFile.write(slot*pageSize, memory, ppn*pageSize,
+				     pageSize);
+	Lib.assertTrue(written == pageSize, "swap file write failed");
+    }
+
+    /**
+     * Copy a slot in the swap file to a frame. The caller must hold
+     * <tt>pagingLock</tt>.
+     *
+     * @param	slot	the slot to read.
+     * @param	ppn	the frame to fill.
+     */
+    static void swapIn(int slot, int ppn) {
+	byte[] memory = Machine.processor().getMemory();
+	int read = swapFile.read(slot*pageSize, memory, ppn*pageSize,
+				 pageSize);
+	Lib.assertTrue(read == pageSize, "swap file read failed");
+
+	Machine.recordSwapRead();
+    }
+
+    /**
+     * Copy a slot in the swap file to a newly reserved slot. The caller must
+     * hold <tt>pagingLock</tt>.
+     *
+     * @param	slot	the slot to copy.
+     * @return	the new slot.
+     */
+    static int copySwapSlot(int slot) {
+	byte[] buffer = new byte[pageSize];
+	int read = swapFile.read(slot*pageSize, buffer, 0, pageSize);
+	Lib.assertTrue(read == pageSize, "swap file read failed");
+
+	int copy = allocateSwapSlot();
+	int written = swapFile.write(copy*pageSize, buffer, 0, pageSize);
+	Lib.assertTrue(written == pageSize, "swap file write failed");
+	return copy;
+    }
+
+    /** Held while pages are moved in or out of memory. */
+    static Lock pagingLock;
+
+    /** The inverted page table: the processes and page each frame holds. */
+    private static ArrayList<VMProcess>[] frameOwners;
+    private static int[] frameVPNs;
+    /** The next frame the clock algorithm will look at. */
+    private static int clockHand;
+
+    private static String swapFileName;
+    private static OpenFile swapFile = null;
+    /** The free map of swap slots; a set bit means the slot is in use. */
+    private static long[] swapMap;
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
+    private static final int pageSize = Processor.pageSize;
     private static final char dbgVM = 'v';
 }
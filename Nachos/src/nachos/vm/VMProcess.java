@@ -5,8 +5,23 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
+ *
+ * <p>
+ * A process may use more pages than there are frames: its pages can be
+ * evicted by <tt>VMKernel</tt> to make room for others, and are brought back
+ * on the next fault, from swap if they were written to, and otherwise the
+ * same way they were first loaded.
+ *
+ * <p>
+ * The processor only sees the TLB, which is filled from the page table on
+ * each TLB miss. The <tt>used</tt> and <tt>dirty</tt> bits the processor sets
+ * in the TLB are copied back to the page table before the clock algorithm
+ * looks at them, and when this process is switched out, which also
+ * invalidates the TLB.
  */
 public class VMProcess extends UserProcess {
     /**
@@ -22,6 +37,8 @@ public class VMProcess extends UserProcess {
      */
     public void saveState() {
 	super.saveState();
+
+	flushTLB();
     }
 
     /**
@@ -29,25 +46,339 @@ public class VMProcess extends UserProcess {
      * <tt>UThread.restoreState()</tt>.
      */
     public void restoreState() {
-	super.restoreState();
+	// the TLB is filled on demand instead of from the whole page table
     }
 
     /**
      * Initializes page tables for this process so that the executable can be
-     * demand-paged.
+     * demand-paged. Unlike <tt>UserProcess</tt>, the process does not have to
+     * fit in physical memory.
      *
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-	return super.loadSections();
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+
+	    Lib.debug(dbgVM, "\tinitializing " + section.getName()
+		      + " section (" + section.getLength()
+		      + " pages, loaded on demand)");
+	}
+
+	swapSlots = new int[numPages];
+	Arrays.fill(swapSlots, -1);
+
+	return true;
     }
 
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
+	VMKernel.pagingLock.acquire();
+
 	super.unloadSections();
-    }    
+
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    if (swapSlots[vpn] >= 0) {
+		VMKernel.freeSwapSlot(swapSlots[vpn]);
+		swapSlots[vpn] = -1;
+	    }
+	}
+
+	VMKernel.pagingLock.release();
+    }
+
+    /**
+     * Make sure the specified page is in memory, evicting another page if
+     * necessary.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	<tt>true</tt>.
+     */
+    protected boolean handlePageFault(int vpn) {
+	if (pageTable[vpn].valid)
+	    return true;
+
+	VMKernel.pagingLock.acquire();
+
+	// another thread may have brought it in while we waited
+	boolean loaded = super.handlePageFault(vpn);
+
+	VMKernel.pagingLock.release();
+
+	Lib.assertTrue(loaded);
+	return true;
+    }
+
+    /**
+     * Fill the specified frame with the contents of a page: from swap if the
+     * page has been written there, otherwise as it was first loaded.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	ppn	the frame to fill.
+     */
+    protected void loadPage(int vpn, int ppn) {
+	if (swapSlots[vpn] >= 0) {
+	    Lib.debug(dbgVM, "\tswapping in page " + vpn + " from slot "
+		      + swapSlots[vpn]);
+	    VMKernel.swapIn(swapSlots[vpn], ppn);
+	}
+	else {
+	    super.loadPage(vpn, ppn);
+	}
+    }
+
+    /**
+     * Return a frame for this process from <tt>VMKernel</tt>, which evicts a
+     * page if none is free.
+     *
+     * @param	vpn	the virtual page the frame will hold.
+     * @return	the frame's physical page number.
+     */
+    protected int allocateFrame(int vpn) {
+	// the clock algorithm needs up to date used bits, and the TLB holds the
+	// running process's pages, which need not be ours
+	VMProcess current = (VMProcess) UserKernel.currentProcess();
+	if (current != null)
+	    current.syncTLB();
+
+	return VMKernel.allocateFrame(this, vpn);
+    }
+
+    /**
+     * Give back a frame this process no longer uses.
+     *
+     * @param	ppn	the frame's physical page number.
+     */
+    protected void freeFrame(int ppn) {
+	VMKernel.releaseFrame(ppn, this);
+    }
+
+    /**
+     * Start sharing a frame with another process, which maps it at the same
+     * virtual page.
+     *
+     * @param	ppn	the frame's physical page number.
+     * @param	vpn	the virtual page that maps it in both processes.
+     */
+    protected void shareFrame(int ppn, int vpn) {
+	VMKernel.shareFrame(ppn, this, vpn);
+    }
+
+    /**
+     * Make this process a copy of the specified process, sharing its resident
+     * pages copy-on-write.
+     *
+     * @param	parent	the process to copy, which must be running.
+     * @return	<tt>true</tt> if successful.
+     */
+    protected boolean forkFrom(UserProcess parent) {
+	// bring the parent's dirty bits up to date, and make it reload its
+	// TLB entries once its pages are read-only
+	((VMProcess) parent).flushTLB();
+
+	VMKernel.pagingLock.acquire();
+	boolean forked = super.forkFrom(parent);
+	VMKernel.pagingLock.release();
+
+	return forked;
+    }
+
+    /**
+     * Map a page of this process into a child's address space. A page that is
+     * only in swap is copied to a swap slot of the child's own.
+     *
+     * @param	child	the process created by <tt>fork()</tt>.
+     * @param	vpn	the virtual page number.
+     */
+    protected void sharePage(UserProcess child, int vpn) {
+	super.sharePage(child, vpn);
+
+	VMProcess vmChild = (VMProcess) child;
+	if (swapSlots[vpn] >= 0) {
+	    if (!pageTable[vpn].valid) {
+		vmChild.swapSlots[vpn] = VMKernel.copySwapSlot(swapSlots[vpn]);
+	    }
+	    else {
+		// the child cannot reload the page from our swap slot, so it
+		// must write its own copy if the page is evicted
+		vmChild.pageTable[vpn].dirty = true;
+	    }
+	}
+    }
+
+    /**
+     * Give a copy-on-write page its own frame, so that it can be written.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	<tt>true</tt>.
+     */
+    protected boolean handleCopyOnWrite(int vpn) {
+	VMKernel.pagingLock.acquire();
+
+	// the TLB entry is read-only; the new one is loaded on the next miss
+	invalidateTLBEntry(vpn);
+
+	boolean handled;
+	if (!pageTable[vpn].valid) {
+	    // evicted while we waited, so it comes back as a private copy
+	    handled = super.handlePageFault(vpn);
+	}
+	else {
+	    handled = super.handleCopyOnWrite(vpn);
+	}
+
+	VMKernel.pagingLock.release();
+
+	Lib.assertTrue(handled);
+	return true;
+    }
+
+    /**
+     * Return the page table entry of the specified page.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the page table entry.
+     */
+    TranslationEntry getEntry(int vpn) {
+	return pageTable[vpn];
+    }
+
+    /**
+     * Remove the specified page from memory, writing it to swap if it has
+     * changed since it was last loaded. Called by <tt>VMKernel</tt> with
+     * <tt>pagingLock</tt> held, which frees the frame once every process
+     * sharing it has been called.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	current	<tt>true</tt> if this process is running, so that the
+     *			page may be in the TLB.
+     */
+    void evict(int vpn, boolean current) {
+	TranslationEntry entry = pageTable[vpn];
+
+	// invalidate first, so that nothing can change the page while it is
+	// being written out
+	entry.valid = false;
+	if (current)
+	    invalidateTLBEntry(vpn);
+
+	boolean dirty = entry.dirty;
+	if (dirty) {
+	    if (swapSlots[vpn] < 0)
+		swapSlots[vpn] = VMKernel.allocateSwapSlot();
+
+	    Lib.debug(dbgVM, "\tswapping out page " + vpn + " to slot "
+		      + swapSlots[vpn]);
+	    VMKernel.swapOut(swapSlots[vpn], entry.ppn);
+	    entry.dirty = false;
+	}
+
+	Machine.recordPageEviction(dirty);
+    }
+
+    /**
+     * Handle a TLB miss by loading the page if necessary and adding its entry
+     * to the TLB.
+     *
+     * @param	vpn	the virtual page number that missed.
+     * @return	<tt>false</tt> if the page is not part of this process.
+     */
+    private boolean handleTLBMiss(int vpn) {
+	if (vpn >= numPages)
+	    return false;
+
+	// the page must not be evicted before its TLB entry is written
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (!pageTable[vpn].valid) {
+	    Machine.recordPageFault();
+	    handlePageFault(vpn);
+	}
+
+	Processor processor = Machine.processor();
+	int index = -1;
+	for (int i=0; i<processor.getTLBSize() && index < 0; i++) {
+	    if (!processor.readTLBEntry(i).valid)
+		index = i;
+	}
+	if (index < 0) {
+	    index = tlbVictim;
+	    tlbVictim = (tlbVictim+1) % processor.getTLBSize();
+	    syncTLBEntry(index);
+	}
+
+	TranslationEntry entry = pageTable[vpn];
+	processor.writeTLBEntry(index, new TranslationEntry(entry));
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * Copy the <tt>used</tt> and <tt>dirty</tt> bits of every TLB entry to the
+     * page table.
+     */
+    private void syncTLB() {
+	for (int i=0; i<Machine.processor().getTLBSize(); i++)
+	    syncTLBEntry(i);
+    }
+
+    /**
+     * Copy the <tt>used</tt> and <tt>dirty</tt> bits of a TLB entry to the
+     * page table, and clear them in the TLB so that the processor will set
+     * them again on the next access.
+     */
+    private void syncTLBEntry(int index) {
+	Processor processor = Machine.processor();
+	TranslationEntry tlbEntry = processor.readTLBEntry(index);
+	if (!tlbEntry.valid || !(tlbEntry.used || tlbEntry.dirty))
+	    return;
+
+	TranslationEntry entry = pageTable[tlbEntry.vpn];
+	entry.used |= tlbEntry.used;
+	entry.dirty |= tlbEntry.dirty;
+
+	tlbEntry.used = tlbEntry.dirty = false;
+	processor.writeTLBEntry(index, tlbEntry);
+    }
+
+    /**
+     * Invalidate the TLB entry for the specified page, if there is one,
+     * keeping its <tt>used</tt> and <tt>dirty</tt> bits.
+     */
+    private void invalidateTLBEntry(int vpn) {
+	Processor processor = Machine.processor();
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (tlbEntry.valid && tlbEntry.vpn == vpn) {
+		pageTable[vpn].used |= tlbEntry.used;
+		pageTable[vpn].dirty |= tlbEntry.dirty;
+
+		tlbEntry.valid = false;
+		processor.writeTLBEntry(i, tlbEntry);
+	    }
+	}
+    }
+
+    /**
+     * Copy the <tt>used</tt> and <tt>dirty</tt> bits of the whole TLB to the
+     * page table and invalidate it.
+     */
+    private void flushTLB() {
+	Processor processor = Machine.processor();
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (tlbEntry.valid) {
+		pageTable[tlbEntry.vpn].used |= tlbEntry.used;
+		pageTable[tlbEntry.vpn].dirty |= tlbEntry.dirty;
+
+		tlbEntry.valid = false;
+		processor.writeTLBEntry(i, tlbEntry);
+	    }
+	}
+    }
 
     /**
      * Handle a user exception. Called by
@@ -61,12 +392,31 @@ public class VMProcess extends UserProcess {
 	Processor processor = Machine.processor();
 
 	switch (cause) {
+	case Processor.exceptionTLBMiss:
+	    // the faulting instruction is restarted once the TLB is filled
+	    int vpn = Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+	    if (handleTLBMiss(vpn))
+		break;
+
+	    Lib.debug(dbgVM, "TLB miss outside the address space at page "
+		      + vpn);
+	    super.handleException(cause);
+	    break;
+
 	default:
 	    super.handleException(cause);
 	    break;
 	}
     }
-	
+
+    /**
+     * The swap slot holding each page, or -1 if the page has never been
+     * written to swap.
+     */
+    private int[] swapSlots;
+    /** The next TLB entry to replace once all are valid. */
+    private int tlbVictim = 0;
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';